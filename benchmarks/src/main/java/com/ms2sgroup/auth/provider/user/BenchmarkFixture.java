@@ -0,0 +1,183 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.keycloak.Config;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * An H2 database in PostgreSQL mode, or a scratch Postgres database, seeded with
+ * {@code atenxia_user} rows, and a provider factory wired to it through stub Keycloak session
+ * and realm objects. Every user has the password {@link #PASSWORD}.
+ */
+class BenchmarkFixture implements AutoCloseable {
+
+    static final String PASSWORD = "correct horse battery staple";
+    static final String SALT = "Xr4nd0mS4lt";
+
+    final String jdbcUrl;
+    private final String dbUsername;
+    private final String dbPassword;
+    final String[] usernames;
+    final String encodedPassword;
+    final CustomUserStorageProviderFactory factory;
+    final ComponentModel model;
+    final KeycloakSession session;
+    final RealmModel realm;
+    private final Connection keepAlive;
+
+    BenchmarkFixture(int users, int iterations) throws Exception {
+        this("jdbc:h2:mem:atenxia" + System.nanoTime() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1", "sa", "", users, iterations);
+    }
+
+    /**
+     * Seeds the given database, which must not have an {@code atenxia_user} table yet.
+     */
+    BenchmarkFixture(String jdbcUrl, String dbUsername, String dbPassword, int users, int iterations) throws Exception {
+        this.jdbcUrl = jdbcUrl;
+        this.dbUsername = dbUsername;
+        this.dbPassword = dbPassword;
+        this.encodedPassword = encode(PASSWORD, SALT, iterations);
+        this.usernames = new String[users];
+        this.keepAlive = DriverManager.getConnection(jdbcUrl, dbUsername, dbPassword);
+        seed(users);
+
+        this.model = new ComponentModel();
+        model.setId("benchmark-component");
+        model.setParentId("benchmark-realm");
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CONFIG_KEY_JDBC_DRIVER, isPostgres() ? "org.postgresql.Driver" : "org.h2.Driver");
+        config.putSingle(CONFIG_KEY_JDBC_URL, jdbcUrl);
+        config.putSingle(CONFIG_KEY_DB_USERNAME, dbUsername);
+        config.putSingle(CONFIG_KEY_DB_PASSWORD, dbPassword);
+        config.putSingle(CONFIG_KEY_VALIDATION_QUERY, "select 1");
+        // Measure the database path, not the caches
+        config.putSingle(CONFIG_KEY_CACHE_TTL, "0");
+        config.putSingle(CONFIG_KEY_CREDENTIAL_CACHE_TTL, "0");
+        model.setConfig(config);
+
+        this.factory = new CustomUserStorageProviderFactory();
+        factory.init(stubConfig());
+        this.session = stub(KeycloakSession.class);
+        this.realm = stubRealm();
+    }
+
+    CustomUserStorageProvider createProvider() {
+        return factory.create(session, model);
+    }
+
+    Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, dbUsername, dbPassword);
+    }
+
+    boolean isPostgres() {
+        return jdbcUrl.startsWith("jdbc:postgresql:");
+    }
+
+    private void seed(int users) throws SQLException {
+        try (Statement st = keepAlive.createStatement()) {
+            st.execute("create table atenxia_user ("
+              + "username varchar(150) primary key, email varchar(254), password varchar(128), "
+              + "is_active boolean, is_center_admin boolean, is_parent boolean, is_professional boolean, "
+              + "is_teacher boolean, is_staff boolean, updated_at timestamp default current_timestamp)");
+            st.execute("create index atenxia_user_email_idx on atenxia_user (email)");
+        }
+        try (PreparedStatement st = keepAlive.prepareStatement(
+          "insert into atenxia_user (username, email, password, is_active, is_center_admin, is_parent, is_professional, is_teacher, is_staff) values (?, ?, ?, true, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < users; i++) {
+                usernames[i] = String.format("user%07d", i);
+                st.setString(1, usernames[i]);
+                st.setString(2, usernames[i] + "@example.org");
+                st.setString(3, encodedPassword);
+                st.setBoolean(4, i % 50 == 0);
+                st.setBoolean(5, i % 3 == 0);
+                st.setBoolean(6, i % 7 == 0);
+                st.setBoolean(7, i % 5 == 0);
+                st.setBoolean(8, i % 100 == 0);
+                st.addBatch();
+                if (i % 1000 == 999) {
+                    st.executeBatch();
+                }
+            }
+            st.executeBatch();
+        }
+    }
+
+    /**
+     * Stored password in the format written by the Atenxia application, computed with the JDK
+     * implementation so the provider's own code is checked against an independent one.
+     */
+    static String encode(String password, String salt, int iterations) throws Exception {
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] key = skf.generateSecret(new PBEKeySpec(password.toCharArray(), salt.getBytes(), iterations, 256)).getEncoded();
+        return "pbkdf2_sha256$" + iterations + "$" + salt + "$" + Base64.getEncoder().encodeToString(key);
+    }
+
+    @Override
+    public void close() throws Exception {
+        factory.close();
+        keepAlive.close();
+    }
+
+    private static Config.Scope stubConfig() {
+        return (Config.Scope) Proxy.newProxyInstance(Config.Scope.class.getClassLoader(), new Class<?>[] { Config.Scope.class },
+          (proxy, method, args) -> args != null && args.length == 2 ? args[1] : null);
+    }
+
+    private static RealmModel stubRealm() {
+        ClientModel client = (ClientModel) Proxy.newProxyInstance(ClientModel.class.getClassLoader(), new Class<?>[] { ClientModel.class },
+          (proxy, method, args) -> switch (method.getName()) {
+              case "getId" -> "atenxia-api-client-id";
+              case "getClientId" -> AtenxiaClientRoles.CLIENT;
+              case "getRole" -> stubRole((String) args[0]);
+              default -> defaultValue(method.getReturnType());
+          });
+        return (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(), new Class<?>[] { RealmModel.class },
+          (proxy, method, args) -> switch (method.getName()) {
+              case "getId" -> "benchmark-realm";
+              case "getName" -> "benchmark";
+              case "getClientByClientId" -> client;
+              default -> defaultValue(method.getReturnType());
+          });
+    }
+
+    private static RoleModel stubRole(String name) {
+        return (RoleModel) Proxy.newProxyInstance(RoleModel.class.getClassLoader(), new Class<?>[] { RoleModel.class },
+          (proxy, method, args) -> switch (method.getName()) {
+              case "getId", "getName" -> name;
+              case "isClientRole" -> true;
+              case "getContainerId" -> "atenxia-api-client-id";
+              default -> defaultValue(method.getReturnType());
+          });
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+          (proxy, method, args) -> defaultValue(method.getReturnType()));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type.isPrimitive() && type != void.class) {
+            return Array.get(Array.newInstance(type, 1), 0);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.ms2sgroup.auth.provider.user;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Accepts the usual JMH command line options and always
+ * adds the GC profiler, so every run reports allocation rate next to throughput.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+          .parent(new CommandLineOptions(args))
+          .addProfiler(GCProfiler.class)
+          .build())
+          .run();
+    }
+}
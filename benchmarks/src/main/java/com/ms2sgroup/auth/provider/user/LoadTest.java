@@ -0,0 +1,342 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.ms2sgroup.auth.provider.user.util.LatencyHistogram;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Closed-loop load test of {@link CustomUserStorageProvider}: many concurrent clients, each
+ * running a weighted mix of lookups, logins, searches and counts back to back, with a new
+ * provider per operation as Keycloak creates one per session. Reports throughput and latency
+ * percentiles per operation and the database connections in use, and writes them as JSON so
+ * runs can be compared.
+ * <p>
+ * Each client is a platform thread, since the provider targets Java 17. A few thousand of them
+ * are fine; the connection pool and the password verifier, not the client threads, are what
+ * a login storm saturates.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.ms2sgroup.auth.provider.user.LoadTest \
+ *   --users 100000 --threads 500 --duration 60 --out load-test.json
+ * </pre>
+ * Options, with their defaults:
+ * <ul>
+ * <li>{@code --users 10000} rows seeded into {@code atenxia_user}
+ * <li>{@code --threads 200} concurrent clients
+ * <li>{@code --warmup 10} and {@code --duration 30} seconds
+ * <li>{@code --mix username=40,id=20,login=25,search=10,count=5} relative weights of the operations
+ * <li>{@code --iterations 260000} PBKDF2 iterations of the seeded password hashes
+ * <li>{@code --jdbc-url}, {@code --db-username}, {@code --db-password} a scratch Postgres
+ *   database without an {@code atenxia_user} table, instead of an in-memory H2 database
+ * <li>{@code --config key=value} component setting, repeatable, e.g. {@code --config cacheTtl=30};
+ *   caches are off unless set
+ * <li>{@code --out load-test.json} result file
+ * </ul>
+ */
+public class LoadTest {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 100;
+    private static final int SEARCH_PAGE_SIZE = 20;
+
+    enum Operation {
+        USERNAME, ID, LOGIN, SEARCH, COUNT
+    }
+
+    private final BenchmarkFixture fixture;
+    private final Map<Operation, Integer> mix;
+    private final int threads;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+    private final Operation[] weighted;
+    private final UserCredentialModel credential = UserCredentialModel.password(BenchmarkFixture.PASSWORD);
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+    private int maxSessions;
+    private long totalSessions;
+    private int sessionSamples;
+    private long rejectedBefore;
+    private long timedOutBefore;
+
+    LoadTest(BenchmarkFixture fixture, Map<Operation, Integer> mix, int threads, int warmupSeconds, int durationSeconds) {
+        this.fixture = fixture;
+        this.mix = mix;
+        this.threads = threads;
+        this.warmupSeconds = warmupSeconds;
+        this.durationSeconds = durationSeconds;
+        List<Operation> slots = new ArrayList<>();
+        mix.forEach((operation, weight) -> {
+            for (int i = 0; i < weight; i++) {
+                slots.add(operation);
+            }
+        });
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("The operation mix is empty");
+        }
+        this.weighted = slots.toArray(new Operation[0]);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        Map<String, String> config = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            if (args[i].equals("--config")) {
+                String[] setting = args[i + 1].split("=", 2);
+                config.put(setting[0], setting.length > 1 ? setting[1] : "");
+            }
+            else {
+                options.put(args[i].substring(2), args[i + 1]);
+            }
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "260000"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "200"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        Map<Operation, Integer> mix = parseMix(options.getOrDefault("mix", "username=40,id=20,login=25,search=10,count=5"));
+        File out = new File(options.getOrDefault("out", "load-test.json"));
+
+        System.out.printf("Seeding %d users%n", users);
+        String jdbcUrl = options.get("jdbc-url");
+        try (BenchmarkFixture fixture = jdbcUrl != null
+          ? new BenchmarkFixture(jdbcUrl, options.get("db-username"), options.getOrDefault("db-password", ""), users, iterations)
+          : new BenchmarkFixture(users, iterations)) {
+            config.forEach(fixture.model.getConfig()::putSingle);
+            LoadTest test = new LoadTest(fixture, mix, threads, warmup, duration);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("timestamp", Instant.now().toString());
+            result.put("database", fixture.isPostgres() ? "postgresql" : "h2");
+            result.put("users", users);
+            result.put("threads", threads);
+            result.put("warmupSeconds", warmup);
+            result.put("durationSeconds", duration);
+            result.put("passwordIterations", iterations);
+            result.put("mix", mix.entrySet().stream()
+              .collect(Collectors.toMap(e -> e.getKey().name().toLowerCase(), Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new)));
+            result.put("config", config);
+            result.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+            result.put("javaVersion", System.getProperty("java.version"));
+            result.putAll(test.run());
+
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out, result);
+            System.out.printf("Results written to %s%n", out.getAbsolutePath());
+        }
+    }
+
+    private static Map<Operation, Integer> parseMix(String value) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String entry : value.split(",")) {
+            String[] weight = entry.split("=", 2);
+            mix.put(Operation.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+        return mix;
+    }
+
+    private Map<String, Object> run() throws Exception {
+        List<Thread> clients = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread client = new Thread(this::client, "load-test-client-" + i);
+            client.setDaemon(true);
+            clients.add(client);
+        }
+        System.out.printf("Running %d clients: %ds warmup, %ds measurement%n", threads, warmupSeconds, durationSeconds);
+        clients.forEach(Thread::start);
+        try (Connection monitor = fixture.openConnection()) {
+            sample(monitor, TimeUnit.SECONDS.toMillis(warmupSeconds));
+            resetCounters();
+            measuring = true;
+            long started = System.nanoTime();
+            sample(monitor, TimeUnit.SECONDS.toMillis(durationSeconds));
+            measuring = false;
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            running = false;
+            for (Thread client : clients) {
+                client.join();
+            }
+            return report(elapsed);
+        }
+    }
+
+    private void client() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            Operation operation = weighted[random.nextInt(weighted.length)];
+            String username = fixture.usernames[random.nextInt(fixture.usernames.length)];
+            long start = System.nanoTime();
+            boolean ok;
+            CustomUserStorageProvider provider = fixture.createProvider();
+            try {
+                ok = execute(provider, operation, username);
+            }
+            catch(RuntimeException ex) {
+                ok = false;
+            }
+            finally {
+                provider.close();
+            }
+            if (measuring) {
+                latencies.get(operation).record(System.nanoTime() - start);
+                if (!ok) {
+                    errors.get(operation).increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the operation found what the seeded data says it should
+     */
+    private boolean execute(CustomUserStorageProvider provider, Operation operation, String username) {
+        switch (operation) {
+            case USERNAME:
+                return provider.getUserByUsername(fixture.realm, username) != null;
+            case ID:
+                return provider.getUserById(fixture.realm, StorageId.keycloakId(fixture.model, username)) != null;
+            case LOGIN:
+                UserModel user = provider.getUserByUsername(fixture.realm, username);
+                return user != null && provider.isValid(fixture.realm, user, credential);
+            case SEARCH:
+                // Usernames sharing all but the last two digits
+                String prefix = username.substring(0, username.length() - 2);
+                return provider.searchForUserStream(fixture.realm, prefix, 0, SEARCH_PAGE_SIZE).count() > 0;
+            case COUNT:
+                return provider.getUsersCount(fixture.realm) > 0;
+            default:
+                throw new IllegalStateException(operation.name());
+        }
+    }
+
+    /**
+     * Samples the number of database sessions until the given time has passed.
+     */
+    private void sample(Connection monitor, long millis) throws InterruptedException {
+        String sql = fixture.isPostgres()
+          ? "select count(*) from pg_stat_activity where datname = current_database()"
+          : "select count(*) from information_schema.sessions";
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            try (Statement st = monitor.createStatement();
+                 ResultSet rs = st.executeQuery(sql)) {
+                rs.next();
+                // Not counting the monitor and the fixture's own connection
+                int sessions = Math.max(0, rs.getInt(1) - 2);
+                synchronized (this) {
+                    maxSessions = Math.max(maxSessions, sessions);
+                    totalSessions += sessions;
+                    sessionSamples++;
+                }
+            }
+            catch(SQLException ex) {
+                System.err.printf("Unable to count database sessions: %s%n", ex.getMessage());
+            }
+            Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        }
+    }
+
+    private synchronized void resetCounters() throws Exception {
+        latencies.values().forEach(LatencyHistogram::reset);
+        errors.values().forEach(LongAdder::reset);
+        maxSessions = 0;
+        totalSessions = 0;
+        sessionSamples = 0;
+        providerMetrics().reset();
+        rejectedBefore = passwordVerifier().getRejected();
+        timedOutBefore = passwordVerifier().getTimedOut();
+    }
+
+    private ProviderMetricsMXBean providerMetrics() throws Exception {
+        ObjectName name = new ObjectName("com.ms2sgroup.auth:type=ProviderMetrics,component=" + ObjectName.quote(fixture.model.getId()));
+        return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, ProviderMetricsMXBean.class);
+    }
+
+    private PasswordVerifierMXBean passwordVerifier() throws Exception {
+        ObjectName name = new ObjectName("com.ms2sgroup.auth:type=PasswordVerifier");
+        return JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, PasswordVerifierMXBean.class);
+    }
+
+    private synchronized Map<String, Object> report(double elapsedSeconds) throws Exception {
+        Map<String, Object> operations = new LinkedHashMap<>();
+        System.out.printf("%n%-10s %10s %8s %10s %9s %9s %9s %9s%n", "operation", "ops/s", "errors", "count", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Operation operation : mix.keySet()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", histogram.getCount());
+            stats.put("errors", errors.get(operation).sum());
+            stats.put("throughput", histogram.getCount() / elapsedSeconds);
+            stats.put("meanMillis", histogram.getMeanMillis());
+            stats.put("p50Millis", histogram.getPercentileMillis(0.5));
+            stats.put("p99Millis", histogram.getPercentileMillis(0.99));
+            stats.put("p999Millis", histogram.getPercentileMillis(0.999));
+            stats.put("maxMillis", histogram.getMaxMillis());
+            operations.put(operation.name().toLowerCase(), stats);
+            System.out.printf("%-10s %10.1f %8d %10d %9.2f %9.2f %9.2f %9.2f%n", operation.name().toLowerCase(),
+              stats.get("throughput"), stats.get("errors"), stats.get("count"), stats.get("p50Millis"),
+              stats.get("p99Millis"), stats.get("p999Millis"), stats.get("maxMillis"));
+        }
+
+        OperationStats acquisition = providerMetrics().getConnectionAcquisition();
+        Map<String, Object> connections = new LinkedHashMap<>();
+        connections.put("poolMaxSize", fixture.model.get(CONFIG_KEY_POOL_MAX_SIZE, DbUtil.DEFAULT_POOL_MAX_SIZE));
+        connections.put("databaseSessionsMax", maxSessions);
+        connections.put("databaseSessionsMean", sessionSamples == 0 ? 0 : (double) totalSessions / sessionSamples);
+        connections.put("acquisitions", acquisition.getCount());
+        connections.put("acquisitionErrors", acquisition.getErrors());
+        connections.put("acquisitionP50Millis", acquisition.getP50Millis());
+        connections.put("acquisitionP99Millis", acquisition.getP99Millis());
+        connections.put("acquisitionMaxMillis", acquisition.getMaxMillis());
+        System.out.printf("%nconnections: pool max %s, database sessions max %d mean %.1f, acquisition p99 %.2f ms%n",
+          connections.get("poolMaxSize"), maxSessions, connections.get("databaseSessionsMean"), acquisition.getP99Millis());
+
+        // Logins failed without a verification because the verification pool was saturated
+        PasswordVerifierMXBean verifier = passwordVerifier();
+        Map<String, Object> passwords = new LinkedHashMap<>();
+        passwords.put("threads", verifier.getThreads());
+        passwords.put("queueCapacity", verifier.getQueueCapacity());
+        passwords.put("rejected", verifier.getRejected() - rejectedBefore);
+        passwords.put("timedOut", verifier.getTimedOut() - timedOutBefore);
+        System.out.printf("password verification: %d threads, queue %d, rejected %s, timed out %s%n",
+          verifier.getThreads(), verifier.getQueueCapacity(), passwords.get("rejected"), passwords.get("timedOut"));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("elapsedSeconds", elapsedSeconds);
+        report.put("throughput", operations.values().stream()
+          .collect(Collectors.summingDouble(stats -> (Double) ((Map<?, ?>) stats).get("throughput"))));
+        report.put("operations", operations);
+        report.put("connections", connections);
+        report.put("passwordVerification", passwords);
+        return report;
+    }
+}
@@ -0,0 +1,61 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ms2sgroup.auth.provider.user.util.PBKDF2SHA256HashingUtil;
+import com.ms2sgroup.auth.provider.user.util.PasswordHash;
+
+/**
+ * Password verification and stored hash parsing, as done by {@code isValid} on every login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PasswordBenchmark {
+
+    // Django's defaults for pbkdf2_sha256 over the releases the Atenxia application has used
+    @Param({ "150000", "260000", "600000" })
+    public int iterations;
+
+    private String encoded;
+    private byte[] hash;
+
+    @Setup
+    public void setUp() throws Exception {
+        encoded = BenchmarkFixture.encode(BenchmarkFixture.PASSWORD, BenchmarkFixture.SALT, iterations);
+        hash = PasswordHash.parse(encoded).getHashBytes();
+    }
+
+    @Benchmark
+    public boolean validatePassword() {
+        return new PBKDF2SHA256HashingUtil(BenchmarkFixture.PASSWORD, BenchmarkFixture.SALT, iterations).validatePassword(hash);
+    }
+
+    @Benchmark
+    public PasswordHash parsePasswordHash() {
+        return PasswordHash.parse(encoded);
+    }
+
+    /**
+     * The regex split previously done by {@code isValid}, as a baseline for the parser.
+     */
+    @Benchmark
+    public String[] splitPasswordHash() {
+        return encoded.split("\\$");
+    }
+}
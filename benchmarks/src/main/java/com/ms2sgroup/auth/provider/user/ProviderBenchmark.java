@@ -0,0 +1,144 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link CustomUserStorageProvider} against an embedded H2 database in PostgreSQL mode.
+ * Each lookup and login uses a new provider, as Keycloak creates one per session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProviderBenchmark {
+
+    private static final int PAGE_SIZE = 500;
+
+    @Param({ "10000" })
+    public int users;
+
+    // Kept low so the database path, not the hash, dominates the login benchmark
+    @Param({ "1000" })
+    public int iterations;
+
+    private BenchmarkFixture fixture;
+    private CustomUserStorageProvider provider;
+    private Connection connection;
+    private ResultSet row;
+    private UserCredentialModel credential;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new BenchmarkFixture(users, iterations);
+        provider = fixture.createProvider();
+        connection = fixture.openConnection();
+        Statement st = connection.createStatement();
+        row = st.executeQuery("select " + UserQueries.USER_COLUMNS + " from atenxia_user where username = '" + fixture.usernames[0] + "'");
+        row.next();
+        credential = UserCredentialModel.password(BenchmarkFixture.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        row.close();
+        connection.close();
+        provider.close();
+        fixture.close();
+    }
+
+    private String randomUsername() {
+        return fixture.usernames[ThreadLocalRandom.current().nextInt(fixture.usernames.length)];
+    }
+
+    /**
+     * Row to adapter mapping only, on a row already fetched.
+     */
+    @Benchmark
+    public CustomUserAdapter mapUser() throws Exception {
+        return provider.mapUser(fixture.realm, provider.readUser(row));
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername() {
+        CustomUserStorageProvider p = fixture.createProvider();
+        try {
+            return p.getUserByUsername(fixture.realm, randomUsername());
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Resolution of a page of group members, in one query.
+     */
+    @Benchmark
+    public List<UserModel> getUsersByUsername() {
+        CustomUserStorageProvider p = fixture.createProvider();
+        try {
+            int from = ThreadLocalRandom.current().nextInt(fixture.usernames.length - PAGE_SIZE);
+            return p.getUsersByUsername(fixture.realm, Arrays.asList(fixture.usernames).subList(from, from + PAGE_SIZE));
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Lookup followed by password verification, as in a password grant.
+     */
+    @Benchmark
+    public boolean login() {
+        CustomUserStorageProvider p = fixture.createProvider();
+        try {
+            UserModel user = p.getUserByUsername(fixture.realm, randomUsername());
+            return p.isValid(fixture.realm, user, credential);
+        }
+        finally {
+            p.close();
+        }
+    }
+
+    /**
+     * Lookups Keycloak repeats for the same user while serving one login, in one session.
+     */
+    @Benchmark
+    public boolean loginRequest() {
+        CustomUserStorageProvider p = fixture.createProvider();
+        try {
+            String username = randomUsername();
+            UserModel user = p.getUserByUsername(fixture.realm, username);
+            p.getUserById(fixture.realm, user.getId());
+            p.getUserByUsername(fixture.realm, username);
+            p.isConfiguredFor(fixture.realm, user, credential.getType());
+            return p.isValid(fixture.realm, p.getUserById(fixture.realm, user.getId()), credential);
+        }
+        finally {
+            p.close();
+        }
+    }
+}
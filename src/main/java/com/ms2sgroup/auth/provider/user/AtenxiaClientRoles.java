@@ -0,0 +1,144 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Client roles of {@code atenxia-api-client} that are derived from the {@code is_*} flags of
+ * {@code atenxia_user} rather than stored as role mappings. Resolved once per realm and session.
+ */
+class AtenxiaClientRoles {
+
+    static final String CLIENT = "atenxia-api-client";
+
+    static final String ROLE_TEACHER = "TEACHER";
+    static final String ROLE_PROFESSIONAL = "PROFESSIONAL";
+    static final String ROLE_ADMIN = "ADMIN";
+    static final String ROLE_PARENT = "PARENT";
+    static final String ROLE_CENTER_ADMIN = "CENTER_ADMIN";
+
+    private final ClientModel client;
+    private final RoleModel teacher;
+    private final RoleModel parent;
+    private final RoleModel professional;
+    private final RoleModel centerAdmin;
+    private final RoleModel admin;
+    private final Set<String> managedRoleIds = new HashSet<>();
+
+    AtenxiaClientRoles(RealmModel realm) {
+        this.client = realm.getClientByClientId(CLIENT);
+        this.teacher = getRole(ROLE_TEACHER);
+        this.parent = getRole(ROLE_PARENT);
+        this.professional = getRole(ROLE_PROFESSIONAL);
+        this.centerAdmin = getRole(ROLE_CENTER_ADMIN);
+        this.admin = getRole(ROLE_ADMIN);
+    }
+
+    private RoleModel getRole(String roleName) {
+        RoleModel role = client != null ? client.getRole(roleName) : null;
+        if (role != null) {
+            managedRoleIds.add(role.getId());
+        }
+        return role;
+    }
+
+    /**
+     * Roles granted to the user by its flags.
+     */
+    Set<RoleModel> getRoles(CustomUser user) {
+        Set<RoleModel> roles = new HashSet<>();
+        addIf(roles, user.isTeacher(), teacher);
+        addIf(roles, user.isParent(), parent);
+        addIf(roles, user.isProfessional(), professional);
+        addIf(roles, user.isCenterAdmin(), centerAdmin);
+        addIf(roles, user.isAdmin(), admin);
+        return roles;
+    }
+
+    private static void addIf(Set<RoleModel> roles, boolean granted, RoleModel role) {
+        if (granted && role != null) {
+            roles.add(role);
+        }
+    }
+
+    /**
+     * Grants or removes the flag-derived roles on a user imported into local storage.
+     * @return whether a role mapping was changed
+     */
+    boolean apply(UserModel imported, CustomUser user) {
+        boolean changed = apply(imported, teacher, user.isTeacher());
+        changed |= apply(imported, parent, user.isParent());
+        changed |= apply(imported, professional, user.isProfessional());
+        changed |= apply(imported, centerAdmin, user.isCenterAdmin());
+        changed |= apply(imported, admin, user.isAdmin());
+        return changed;
+    }
+
+    private static boolean apply(UserModel imported, RoleModel role, boolean granted) {
+        if (role == null) {
+            return false;
+        }
+        boolean mapped = imported.getRoleMappingsStream().anyMatch(r -> r.getId().equals(role.getId()));
+        if (granted && !mapped) {
+            imported.grantRole(role);
+            return true;
+        }
+        if (!granted && mapped) {
+            imported.deleteRoleMapping(role);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the user holds the given role directly through its flags.
+     */
+    boolean hasRole(CustomUser user, RoleModel role) {
+        if (!isManaged(role)) {
+            return false;
+        }
+        String id = role.getId();
+        return (user.isTeacher() && teacher != null && id.equals(teacher.getId()))
+          || (user.isParent() && parent != null && id.equals(parent.getId()))
+          || (user.isProfessional() && professional != null && id.equals(professional.getId()))
+          || (user.isCenterAdmin() && centerAdmin != null && id.equals(centerAdmin.getId()))
+          || (user.isAdmin() && admin != null && id.equals(admin.getId()));
+    }
+
+    /**
+     * Whether the role is one of those derived from the flags. Stored mappings of these roles
+     * are ignored so the flags stay authoritative.
+     */
+    boolean isManaged(RoleModel role) {
+        return role != null && managedRoleIds.contains(role.getId());
+    }
+
+    /**
+     * Flag attribute (see {@link AtenxiaUserAttributes}) that grants the role, or null if the
+     * role is not derived from a flag.
+     */
+    String getFlagAttribute(RoleModel role) {
+        if (!isManaged(role)) {
+            return null;
+        }
+        String id = role.getId();
+        if (teacher != null && id.equals(teacher.getId())) {
+            return AtenxiaUserAttributes.TEACHER;
+        }
+        if (parent != null && id.equals(parent.getId())) {
+            return AtenxiaUserAttributes.PARENT;
+        }
+        if (professional != null && id.equals(professional.getId())) {
+            return AtenxiaUserAttributes.PROFESSIONAL;
+        }
+        if (centerAdmin != null && id.equals(centerAdmin.getId())) {
+            return AtenxiaUserAttributes.CENTER_ADMIN;
+        }
+        return AtenxiaUserAttributes.STAFF;
+    }
+}
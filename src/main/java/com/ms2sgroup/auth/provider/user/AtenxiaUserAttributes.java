@@ -0,0 +1,63 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only user attributes derived from {@code atenxia_user} columns. They are reported by
+ * {@link CustomUserAdapter} and can be searched with
+ * {@code searchForUserByUserAttributeStream}, each through a condition that a partial or
+ * expression index can serve (see {@code db/atenxia_user_indexes.sql}).
+ */
+final class AtenxiaUserAttributes {
+
+    static final String TEACHER = "is_teacher";
+    static final String PARENT = "is_parent";
+    static final String PROFESSIONAL = "is_professional";
+    static final String CENTER_ADMIN = "is_center_admin";
+    static final String STAFF = "is_staff";
+    static final String EMAIL_DOMAIN = "email_domain";
+
+    static final List<String> NAMES = List.of(TEACHER, PARENT, PROFESSIONAL, CENTER_ADMIN, STAFF, EMAIL_DOMAIN);
+
+    private AtenxiaUserAttributes() {
+    }
+
+    static boolean isAttribute(String name) {
+        return NAMES.contains(name);
+    }
+
+    /**
+     * Value of the attribute for the user, or null if the user has none.
+     */
+    static String getValue(CustomUser user, String name) {
+        return switch (name) {
+            case TEACHER -> String.valueOf(user.isTeacher());
+            case PARENT -> String.valueOf(user.isParent());
+            case PROFESSIONAL -> String.valueOf(user.isProfessional());
+            case CENTER_ADMIN -> String.valueOf(user.isCenterAdmin());
+            case STAFF -> String.valueOf(user.isAdmin());
+            case EMAIL_DOMAIN -> emailDomain(user.getEmail());
+            default -> null;
+        };
+    }
+
+    /**
+     * {@link CustomUser} flag holding a boolean attribute, 0 for other attributes.
+     */
+    static int getFlag(String name) {
+        return switch (name) {
+            case TEACHER -> CustomUser.TEACHER;
+            case PARENT -> CustomUser.PARENT;
+            case PROFESSIONAL -> CustomUser.PROFESSIONAL;
+            case CENTER_ADMIN -> CustomUser.CENTER_ADMIN;
+            case STAFF -> CustomUser.ADMIN;
+            default -> 0;
+        };
+    }
+
+    static String emailDomain(String email) {
+        int at = email != null ? email.indexOf('@') : -1;
+        return at < 0 ? null : email.substring(at + 1).toLowerCase(Locale.ROOT);
+    }
+}
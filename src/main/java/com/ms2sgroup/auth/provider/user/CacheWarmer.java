@@ -0,0 +1,201 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Loads the most recently active users of a component into its {@link UserCache} on a
+ * background thread, so the first logins after a restart or a configuration change are not
+ * all sent to the database at once. Users are streamed through a server-side cursor in the
+ * configured order and loaded at a bounded rate, over one connection. Without an order, the
+ * users who logged in last according to the {@link LoginRecorder} table are loaded when login
+ * recording is enabled, and users in username order otherwise.
+ * <p>
+ * Users stay cached for the user cache TTL only, so the warm-up loads no more users than it
+ * can within that time: the first ones, the most active, would be gone before the last ones
+ * are in.
+ */
+class CacheWarmer implements CacheWarmerMXBean {
+    private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+    public static final int DEFAULT_WARMUP_USERS = 0;
+    public static final String DEFAULT_WARMUP_ORDER = "";
+    public static final int DEFAULT_WARMUP_RATE = 1000;
+    // Column names with an optional direction and nulls placement, comma separated
+    private static final Pattern ORDER = Pattern.compile(
+      "(?i)\\s*[a-z_][a-z0-9_]*(\\s+(asc|desc))?(\\s+nulls\\s+(first|last))?\\s*(,\\s*[a-z_][a-z0-9_]*(\\s+(asc|desc))?(\\s+nulls\\s+(first|last))?\\s*)*");
+    private static final int PROGRESS_STEP = 10_000;
+
+    enum Status {
+        PENDING, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final String componentId;
+    private final DataSource dataSource;
+    private final UserCache userCache;
+    private final int target;
+    private final String order;
+    private final String sql;
+    private final int rate;
+    private final int fetchSize;
+    private final Thread thread;
+    private volatile Status status = Status.PENDING;
+    private volatile boolean closed;
+    private volatile int loaded;
+    private volatile long started;
+    private volatile long finished;
+    private volatile String lastEvent;
+
+    CacheWarmer(ComponentModel model, DataSource dataSource, UserCache userCache, LoginRecorder loginRecorder) {
+        this.componentId = model.getId();
+        this.dataSource = dataSource;
+        this.userCache = userCache;
+        this.rate = Math.max(1, model.get(CONFIG_KEY_WARMUP_RATE, DEFAULT_WARMUP_RATE));
+        // Loading more users than the cache holds would only evict the most active ones
+        int users = Math.min(model.get(CONFIG_KEY_WARMUP_USERS, DEFAULT_WARMUP_USERS),
+          model.get(CONFIG_KEY_CACHE_MAX_ENTRIES, ComponentState.DEFAULT_CACHE_MAX_ENTRIES));
+        long ttl = model.get(CONFIG_KEY_CACHE_TTL, ComponentState.DEFAULT_CACHE_TTL);
+        if (ttl > 0 && users > rate * ttl) {
+            log.warn("[W70] Cache warm-up of component {} limited to {} users: at {} users/s, the first ones would expire from the {}s user cache"
+              + " before the last ones are loaded", componentId, rate * ttl, rate, ttl);
+            users = (int) (rate * ttl);
+        }
+        this.target = users;
+        String configured = model.get(CONFIG_KEY_WARMUP_ORDER, DEFAULT_WARMUP_ORDER);
+        if (configured != null && !configured.isBlank()) {
+            this.order = configured;
+            this.sql = UserQueries.warmup(configured);
+        }
+        else if (loginRecorder.isEnabled()) {
+            this.order = "last_login desc";
+            this.sql = UserQueries.warmupByLastLogin(loginRecorder.getTable());
+        }
+        else {
+            this.order = "username";
+            this.sql = UserQueries.warmup(order);
+        }
+        this.fetchSize = model.get(CONFIG_KEY_FETCH_SIZE, ComponentState.DEFAULT_FETCH_SIZE);
+        if (!isEnabled()) {
+            this.thread = null;
+            return;
+        }
+        if (!userCache.isEnabled()) {
+            log.warn("[W68] Cache warm-up of component {} skipped: the user cache is disabled", componentId);
+            this.thread = null;
+            return;
+        }
+        validate(model);
+        this.thread = new Thread(this::run, "atenxia-cache-warmup-" + componentId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isEnabled() {
+        return target > 0;
+    }
+
+    /**
+     * Rejects an order that is not a list of columns, as it is put in the warm-up query as is.
+     */
+    static void validate(ComponentModel model) {
+        String order = model.get(CONFIG_KEY_WARMUP_ORDER, DEFAULT_WARMUP_ORDER);
+        if (order != null && !order.isBlank() && !ORDER.matcher(order).matches()) {
+            throw new IllegalStateException("Invalid warm-up order: " + order);
+        }
+    }
+
+    private void run() {
+        started = System.nanoTime();
+        status = Status.RUNNING;
+        log.info("[I87] Warming up user cache of component {} with up to {} users ordered by {}", componentId, target, order);
+        event("Started");
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        try (QueryCursor<CustomUser> cursor = QueryCursor.open(dataSource, sql, List.of(target), fetchSize,
+          CustomUserStorageProvider::mapRow)) {
+            cursor.stream().takeWhile(user -> !closed).forEach(user -> {
+                userCache.put(user);
+                int count = ++loaded;
+                if (count % PROGRESS_STEP == 0) {
+                    log.debug("[D96] Warm-up of component {}: {}/{} users", componentId, count, target);
+                }
+                throttle(started + count * intervalNanos);
+            });
+            status = closed ? Status.CANCELLED : Status.DONE;
+        }
+        catch(SQLException | RuntimeException ex) {
+            status = closed ? Status.CANCELLED : Status.FAILED;
+            log.warn("[W104] Cache warm-up of component {} failed after {} users: ex={}", componentId, loaded, ex.getMessage());
+        }
+        finished = System.nanoTime();
+        log.info("[I107] Cache warm-up of component {} {}: {} users in {} ms", componentId, status.name().toLowerCase(), loaded, getDurationMillis());
+        event(status + ", " + loaded + " users in " + getDurationMillis() + " ms");
+    }
+
+    /**
+     * Sleeps until the given time, so users are loaded no faster than the configured rate.
+     */
+    private void throttle(long notBefore) {
+        long wait = notBefore - System.nanoTime();
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public String getStatus() {
+        return status.name();
+    }
+
+    @Override
+    public int getTarget() {
+        return target;
+    }
+
+    @Override
+    public int getLoaded() {
+        return loaded;
+    }
+
+    @Override
+    public long getDurationMillis() {
+        if (started == 0) {
+            return 0;
+        }
+        long end = finished != 0 ? finished : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - started);
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    void close() {
+        if (thread != null) {
+            closed = true;
+            thread.interrupt();
+        }
+    }
+}
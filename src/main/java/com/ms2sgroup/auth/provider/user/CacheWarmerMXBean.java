@@ -0,0 +1,26 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the user cache warm-up of one provider component.
+ */
+public interface CacheWarmerMXBean {
+
+    /**
+     * PENDING, RUNNING, DONE, FAILED or CANCELLED.
+     */
+    String getStatus();
+
+    /**
+     * Users the warm-up loads at most.
+     */
+    int getTarget();
+
+    int getLoaded();
+
+    /**
+     * Milliseconds the warm-up has been running, or took.
+     */
+    long getDurationMillis();
+
+    String getLastEvent();
+}
@@ -0,0 +1,209 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.keycloak.component.ComponentModel;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Listens for the changes to {@code atenxia_user} notified by the trigger in
+ * {@code db/atenxia_user_notify.sql}, so every node drops a changed user from its caches as
+ * soon as the change commits instead of when its entry expires.
+ * <p>
+ * One dedicated connection, outside the pool, stays open for the life of the component. When
+ * it is lost it is opened again with exponential backoff. Notifications sent in between are
+ * lost, so the caches are flushed every time the listener starts listening.
+ */
+class ChangeListener implements ChangeListenerMXBean {
+    private static final Logger log = LoggerFactory.getLogger(ChangeListener.class);
+
+    // Time to wait for notifications before checking the connection is still alive
+    private static final int POLL_MILLIS = 10_000;
+    private static final long MIN_BACKOFF_MILLIS = 1_000L;
+    private static final long MAX_BACKOFF_MILLIS = 60_000L;
+
+    private final ComponentModel model;
+    private final String componentId;
+    private final String channel;
+    private final int validationTimeout;
+    private final BiConsumer<String, String> onChange;
+    private final Runnable onResync;
+    private final Thread thread;
+    private final LongAdder notifications = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile String lastEvent;
+
+    /**
+     * @param onChange called with the username and the email, possibly null, of each changed user
+     * @param onResync called whenever notifications may have been missed
+     */
+    ChangeListener(ComponentModel model, BiConsumer<String, String> onChange, Runnable onResync) {
+        this.model = model;
+        this.componentId = model.getId();
+        this.channel = model.get(CONFIG_KEY_CHANGE_CHANNEL);
+        this.validationTimeout = model.get(CONFIG_KEY_POOL_VALIDATION_TIMEOUT, DbUtil.DEFAULT_POOL_VALIDATION_TIMEOUT);
+        this.onChange = onChange;
+        this.onResync = onResync;
+        if (!isEnabled()) {
+            this.thread = null;
+            return;
+        }
+        validate(model);
+        this.thread = new Thread(this::run, "atenxia-change-listener-" + componentId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isEnabled() {
+        return channel != null && !channel.isBlank();
+    }
+
+    /**
+     * Rejects a channel that is not a plain identifier, the only names put in the LISTEN statement.
+     */
+    static void validate(ComponentModel model) {
+        String channel = model.get(CONFIG_KEY_CHANGE_CHANNEL);
+        if (channel != null && !channel.isBlank() && !DbUtil.IDENTIFIER.matcher(channel).matches()) {
+            throw new IllegalStateException("Invalid change notification channel: " + channel);
+        }
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        boolean listened = false;
+        while (!closed) {
+            try (Connection c = DbUtil.getConnection(model)) {
+                try (Statement st = c.createStatement()) {
+                    st.execute("LISTEN \"" + channel + "\"");
+                }
+                PGConnection pg = c.unwrap(PGConnection.class);
+                connected = true;
+                if (listened) {
+                    reconnects.increment();
+                }
+                listened = true;
+                backoff = MIN_BACKOFF_MILLIS;
+                log.info("[I93] Component {} listens for changes on channel {}", componentId, channel);
+                event("Listening on channel " + channel);
+                // Changes committed before LISTEN took effect were never notified
+                onResync.run();
+                listen(c, pg);
+            }
+            catch(SQLException | RuntimeException ex) {
+                if (closed) {
+                    break;
+                }
+                log.warn("[W103] Change listener of component {} lost its connection, retrying in {} ms: ex={}", componentId, backoff, ex.getMessage());
+                event("Connection lost: " + ex.getMessage());
+            }
+            finally {
+                connected = false;
+            }
+            if (!sleep(backoff)) {
+                break;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    private void listen(Connection c, PGConnection pg) throws SQLException {
+        while (!closed) {
+            PGNotification[] received = pg.getNotifications(POLL_MILLIS);
+            if (received == null || received.length == 0) {
+                // A connection dropped by a firewall or a failover shows no error until used
+                if (!c.isValid(validationTimeout)) {
+                    throw new SQLException("Connection is not valid");
+                }
+                continue;
+            }
+            for (PGNotification notification : received) {
+                changed(notification.getParameter());
+            }
+        }
+    }
+
+    private void changed(String payload) {
+        if (payload == null || payload.isEmpty()) {
+            return;
+        }
+        int tab = payload.indexOf('\t');
+        String username = tab < 0 ? payload : payload.substring(0, tab);
+        String email = tab < 0 ? null : payload.substring(tab + 1);
+        log.debug("[D139] User {} of component {} changed", username, componentId);
+        notifications.increment();
+        try {
+            onChange.accept(username, email);
+        }
+        catch(RuntimeException ex) {
+            log.warn("[W145] Unable to invalidate user {}: ex={}", username, ex.getMessage());
+        }
+    }
+
+    /**
+     * Waits before the next connection attempt, with jitter so nodes that lost the database
+     * together do not reconnect together.
+     * @return false if the listener was closed meanwhile
+     */
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+            return !closed;
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public long getNotifications() {
+        return notifications.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    void close() {
+        if (thread == null) {
+            return;
+        }
+        // The thread closes its connection at the latest once the current wait for
+        // notifications times out
+        closed = true;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,24 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the change notifications received by one provider component.
+ */
+public interface ChangeListenerMXBean {
+
+    String getChannel();
+
+    boolean isConnected();
+
+    /**
+     * Changed users received, each of which was dropped from the caches.
+     */
+    long getNotifications();
+
+    /**
+     * Times the listening connection was lost and opened again, each followed by a flush
+     * of the caches.
+     */
+    long getReconnects();
+
+    String getLastEvent();
+}
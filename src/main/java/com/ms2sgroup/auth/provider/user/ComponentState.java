@@ -0,0 +1,275 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+import com.ms2sgroup.auth.provider.user.util.ExpiringLruCache;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * State shared by all sessions of one provider component. A component belongs to a single
+ * realm, so everything held here is per realm and per component.
+ */
+class ComponentState {
+    public static final int DEFAULT_CACHE_TTL = 30;
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    public static final int DEFAULT_PASSWORD_TIMEOUT = 5000;
+    public static final int DEFAULT_CREDENTIAL_CACHE_TTL = 0;
+    public static final int DEFAULT_CREDENTIAL_CACHE_MAX_ENTRIES = 1000;
+    public static final int DEFAULT_FETCH_SIZE = 500;
+    public static final int DEFAULT_COUNT_CACHE_TTL = 60;
+    public static final int DEFAULT_STALE_IF_ERROR = 0;
+    private static final long PAGE_KEYS_TTL = 300_000L;
+    private static final int PAGE_KEYS_MAX_ENTRIES = 1000;
+
+    private final String componentId;
+    private final Set<String> configKeys;
+    private final MultivaluedHashMap<String, String> config;
+    private final UserCache userCache;
+    private final CredentialCache credentialCache;
+    private final long passwordTimeout;
+    private final ExpiringLruCache<String, String> pageKeys = new ExpiringLruCache<>(PAGE_KEYS_TTL, PAGE_KEYS_MAX_ENTRIES);
+    private final int fetchSize;
+    private final boolean caseInsensitiveSearch;
+    private final ExpiringLruCache<String, Integer> countCache;
+    private final boolean estimatedCount;
+    private final ProviderMetrics metrics;
+    private final ReplicaRouter replicaRouter;
+    private final LookupFilter lookupFilter;
+    private final ChangeListener changeListener;
+    private final DatabaseGuard databaseGuard;
+    private final CacheWarmer cacheWarmer;
+    private final UserDirectory directory;
+    private final LoginRecorder loginRecorder;
+
+    /**
+     * @param configKeys settings of the provider, the only part of the component config the
+     *   state is built from
+     */
+    ComponentState(ComponentModel model, DataSource dataSource, Set<String> configKeys) {
+        validate(model);
+        this.componentId = model.getId();
+        this.configKeys = configKeys;
+        this.config = ownConfig(model);
+        try {
+            this.userCache = new UserCache(
+              model.get(CONFIG_KEY_CACHE_TTL, DEFAULT_CACHE_TTL),
+              model.get(CONFIG_KEY_STALE_IF_ERROR, DEFAULT_STALE_IF_ERROR),
+              model.get(CONFIG_KEY_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES));
+            MBeans.register("UserCache", componentId, userCache);
+            this.credentialCache = new CredentialCache(
+              model.get(CONFIG_KEY_CREDENTIAL_CACHE_TTL, DEFAULT_CREDENTIAL_CACHE_TTL),
+              model.get(CONFIG_KEY_CREDENTIAL_CACHE_MAX_ENTRIES, DEFAULT_CREDENTIAL_CACHE_MAX_ENTRIES));
+            MBeans.register("CredentialCache", componentId, credentialCache);
+            this.passwordTimeout = model.get(CONFIG_KEY_PASSWORD_TIMEOUT, DEFAULT_PASSWORD_TIMEOUT);
+            this.fetchSize = model.get(CONFIG_KEY_FETCH_SIZE, DEFAULT_FETCH_SIZE);
+            this.caseInsensitiveSearch = model.get(CONFIG_KEY_CASE_INSENSITIVE_SEARCH, false);
+            this.countCache = new ExpiringLruCache<>(model.get(CONFIG_KEY_COUNT_CACHE_TTL, DEFAULT_COUNT_CACHE_TTL) * 1000L, 1);
+            this.estimatedCount = model.get(CONFIG_KEY_ESTIMATED_COUNT, false);
+            this.metrics = new ProviderMetrics(model.get(CONFIG_KEY_LOG_SAMPLE_RATE, ProviderMetrics.DEFAULT_LOG_SAMPLE_RATE));
+            MBeans.register("ProviderMetrics", componentId, metrics);
+            this.databaseGuard = new DatabaseGuard(model);
+            MBeans.register("DatabaseGuard", componentId, databaseGuard);
+            this.replicaRouter = new ReplicaRouter(model);
+            MBeans.register("ReplicaRouter", componentId, replicaRouter);
+            this.lookupFilter = new LookupFilter(model, dataSource);
+            if (lookupFilter.isEnabled()) {
+                MBeans.register("LookupFilter", componentId, lookupFilter);
+            }
+            this.directory = new UserDirectory(model, dataSource);
+            if (directory.isEnabled()) {
+                MBeans.register("UserDirectory", componentId, directory);
+            }
+            this.changeListener = new ChangeListener(model, this::invalidateUser, this::flush);
+            if (changeListener.isEnabled()) {
+                MBeans.register("ChangeListener", componentId, changeListener);
+            }
+            this.loginRecorder = new LoginRecorder(model, dataSource);
+            if (loginRecorder.isEnabled()) {
+                MBeans.register("LoginRecorder", componentId, loginRecorder);
+            }
+            this.cacheWarmer = new CacheWarmer(model, dataSource, userCache, loginRecorder);
+            if (cacheWarmer.isEnabled()) {
+                MBeans.register("CacheWarmer", componentId, cacheWarmer);
+            }
+        }
+        catch(RuntimeException ex) {
+            // Parts already started would otherwise run, unreachable, for the life of the node
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Rejects settings that some part of the state would only reject once the parts built
+     * before it are already running.
+     */
+    static void validate(ComponentModel model) {
+        ChangeListener.validate(model);
+        CacheWarmer.validate(model);
+        LoginRecorder.validate(model);
+    }
+
+    /**
+     * Whether the component warms up its user cache or loads its directory, in which case its
+     * state is worth creating before the first request.
+     */
+    static boolean isWarmedUp(ComponentModel model) {
+        return model.get(CONFIG_KEY_WARMUP_USERS, CacheWarmer.DEFAULT_WARMUP_USERS) > 0
+          || model.get(CONFIG_KEY_DIRECTORY, false);
+    }
+
+    /**
+     * Drops a user changed in the database from everything cached for the component.
+     * @param email current email of the user, added to the lookup filter along with the
+     *   username in case the user is new
+     */
+    void invalidateUser(String username, String email) {
+        // First, so no lookup caches the user again from a replica behind the change
+        replicaRouter.changed(username, email);
+        userCache.invalidateUser(username);
+        credentialCache.invalidateUser(username);
+        countCache.clear();
+        lookupFilter.add(username, email);
+        directory.reload(username);
+    }
+
+    /**
+     * Drops everything cached for the component. The lookup filter and the directory are kept,
+     * and both apply the users modified meanwhile right away.
+     */
+    void flush() {
+        userCache.flush();
+        credentialCache.flush();
+        countCache.clear();
+        lookupFilter.refreshNow();
+        directory.refreshNow();
+    }
+
+    /**
+     * Whether this state was built from the current configuration of the component.
+     * Other cluster nodes never see onUpdate, so configuration changes are detected here.
+     * Keycloak writes its own keys to the same config, lastSync after every synchronization
+     * for one, so only the settings of the provider are compared.
+     */
+    boolean matches(ComponentModel model) {
+        return config.equals(ownConfig(model));
+    }
+
+    private MultivaluedHashMap<String, String> ownConfig(ComponentModel model) {
+        MultivaluedHashMap<String, String> own = new MultivaluedHashMap<>();
+        model.getConfig().forEach((key, values) -> {
+            if (configKeys.contains(key)) {
+                own.put(key, new ArrayList<>(values));
+            }
+        });
+        return own;
+    }
+
+    UserCache getUserCache() {
+        return userCache;
+    }
+
+    CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+     * Milliseconds a login waits for its password to be verified.
+     */
+    long getPasswordTimeout() {
+        return passwordTimeout;
+    }
+
+    /**
+     * Last username of recently served pages, keyed by query and position, so the following
+     * page can seek past it instead of scanning the rows before it again.
+     */
+    ExpiringLruCache<String, String> getPageKeys() {
+        return pageKeys;
+    }
+
+    int getFetchSize() {
+        return fetchSize;
+    }
+
+    boolean isCaseInsensitiveSearch() {
+        return caseInsensitiveSearch;
+    }
+
+    /**
+     * Unfiltered user count, kept for the configured TTL.
+     */
+    ExpiringLruCache<String, Integer> getCountCache() {
+        return countCache;
+    }
+
+    boolean isEstimatedCount() {
+        return estimatedCount;
+    }
+
+    ProviderMetrics getMetrics() {
+        return metrics;
+    }
+
+    ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    DatabaseGuard getDatabaseGuard() {
+        return databaseGuard;
+    }
+
+    LookupFilter getLookupFilter() {
+        return lookupFilter;
+    }
+
+    UserDirectory getDirectory() {
+        return directory;
+    }
+
+    LoginRecorder getLoginRecorder() {
+        return loginRecorder;
+    }
+
+    /**
+     * Closes the parts of the state. Also called on a state whose construction failed, where
+     * the parts not built yet are null.
+     */
+    void close() {
+        MBeans.unregister("UserCache", componentId);
+        MBeans.unregister("CredentialCache", componentId);
+        MBeans.unregister("ProviderMetrics", componentId);
+        MBeans.unregister("DatabaseGuard", componentId);
+        MBeans.unregister("ReplicaRouter", componentId);
+        if (replicaRouter != null) {
+            replicaRouter.close();
+        }
+        MBeans.unregister("LookupFilter", componentId);
+        if (lookupFilter != null) {
+            lookupFilter.close();
+        }
+        MBeans.unregister("UserDirectory", componentId);
+        if (directory != null) {
+            directory.close();
+        }
+        MBeans.unregister("ChangeListener", componentId);
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        MBeans.unregister("CacheWarmer", componentId);
+        if (cacheWarmer != null) {
+            cacheWarmer.close();
+        }
+        MBeans.unregister("LoginRecorder", componentId);
+        if (loginRecorder != null) {
+            loginRecorder.close();
+        }
+    }
+}
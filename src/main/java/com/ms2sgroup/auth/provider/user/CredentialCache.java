@@ -0,0 +1,116 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ms2sgroup.auth.provider.user.util.ExpiringLruCache;
+import com.ms2sgroup.auth.provider.user.util.PasswordHash;
+
+/**
+ * Short-lived memory of successful password verifications, so clients repeating the same
+ * credentials do not pay for a PBKDF2 derivation each time.
+ * <p>
+ * Neither the password nor the stored hash is kept: each entry is an HMAC, under a key
+ * generated at startup, of the stored hash and the presented password. A changed
+ * {@code password} column therefore never matches an existing entry.
+ */
+class CredentialCache implements CredentialCacheMXBean {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    });
+
+    private final boolean enabled;
+    private final SecretKeySpec key;
+    private final ExpiringLruCache<String, byte[]> verified;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param ttlSeconds time a verification is remembered, 0 disables the cache
+     * @param maxEntries
+     */
+    CredentialCache(int ttlSeconds, int maxEntries) {
+        this.enabled = ttlSeconds > 0 && maxEntries > 0;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        this.verified = new ExpiringLruCache<>(ttlSeconds * 1000L, maxEntries);
+    }
+
+    /**
+     * Whether this exact password was successfully verified against this exact stored hash
+     * within the TTL.
+     */
+    boolean isVerified(String username, PasswordHash hash, String password) {
+        if (!enabled || password == null) {
+            return false;
+        }
+        byte[] expected = verified.get(username);
+        if (expected != null && MessageDigest.isEqual(expected, fingerprint(hash, password))) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    void put(String username, PasswordHash hash, String password) {
+        if (enabled && password != null) {
+            verified.put(username, fingerprint(hash, password));
+        }
+    }
+
+    private byte[] fingerprint(PasswordHash hash, String password) {
+        try {
+            Mac mac = MAC.get();
+            mac.init(key);
+            mac.update(hash.getEncoded().getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to fingerprint credential", e);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return verified.size();
+    }
+
+    @Override
+    public void invalidateUser(String username) {
+        verified.remove(username);
+    }
+
+    @Override
+    public void flush() {
+        verified.clear();
+    }
+}
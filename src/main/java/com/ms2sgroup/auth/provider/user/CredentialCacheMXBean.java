@@ -0,0 +1,19 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the verified credential cache of one provider component.
+ */
+public interface CredentialCacheMXBean {
+
+    boolean isEnabled();
+
+    long getHits();
+
+    long getMisses();
+
+    int getSize();
+
+    void invalidateUser(String username);
+
+    void flush();
+}
@@ -3,32 +3,102 @@ package com.ms2sgroup.auth.provider.user;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+/**
+ * One row of {@code atenxia_user}. Search results create one per row, so the role flags are
+ * packed into a single byte and the unused name fields share the empty string.
+ */
 @Data
 @NoArgsConstructor
 public class CustomUser {
 
+	static final int CENTER_ADMIN = 1;
+	static final int PARENT = 1 << 1;
+	static final int PROFESSIONAL = 1 << 2;
+	static final int TEACHER = 1 << 3;
+	static final int ADMIN = 1 << 4;
+
 	private String username;
 	private String email;
-	private String firstName;
-	private String lastName;
-	private boolean centerAdmin;
-	private boolean parent;
-	private boolean professional;
-	private boolean teacher;
-	private boolean admin;
-	private Long created;
+	private String firstName = "";
+	private String lastName = "";
+	private byte flags;
+	private long created;
 
 	public CustomUser(String username, String email, String firstName, String lastName, boolean centerAdmin, boolean parent, boolean professional, boolean teacher, boolean admin) {
 
-		this.username = username;
-		this.email = email;
+		this(username, email, (centerAdmin ? CENTER_ADMIN : 0) | (parent ? PARENT : 0) | (professional ? PROFESSIONAL : 0)
+		  | (teacher ? TEACHER : 0) | (admin ? ADMIN : 0));
 		this.firstName = firstName;
 		this.lastName = lastName;
-		this.centerAdmin = centerAdmin;
-		this.parent = parent;
-		this.professional = professional;
-		this.teacher = teacher;
-		this.admin = admin;
+	}
+
+	/**
+	 * @param flags bitwise or of {@link #CENTER_ADMIN}, {@link #PARENT}, {@link #PROFESSIONAL},
+	 *   {@link #TEACHER} and {@link #ADMIN}
+	 */
+	public CustomUser(String username, String email, int flags) {
+
+		this.username = username;
+		this.email = email;
+		this.flags = (byte) flags;
 		this.created = System.currentTimeMillis();
 	}
-}
\ No newline at end of file
+
+	public CustomUser(CustomUser other) {
+
+		this.username = other.username;
+		this.email = other.email;
+		this.firstName = other.firstName;
+		this.lastName = other.lastName;
+		this.flags = other.flags;
+		this.created = other.created;
+	}
+
+	private boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	private void setFlag(int flag, boolean value) {
+		flags = (byte) (value ? flags | flag : flags & ~flag);
+	}
+
+	public boolean isCenterAdmin() {
+		return hasFlag(CENTER_ADMIN);
+	}
+
+	public void setCenterAdmin(boolean centerAdmin) {
+		setFlag(CENTER_ADMIN, centerAdmin);
+	}
+
+	public boolean isParent() {
+		return hasFlag(PARENT);
+	}
+
+	public void setParent(boolean parent) {
+		setFlag(PARENT, parent);
+	}
+
+	public boolean isProfessional() {
+		return hasFlag(PROFESSIONAL);
+	}
+
+	public void setProfessional(boolean professional) {
+		setFlag(PROFESSIONAL, professional);
+	}
+
+	public boolean isTeacher() {
+		return hasFlag(TEACHER);
+	}
+
+	public void setTeacher(boolean teacher) {
+		setFlag(TEACHER, teacher);
+	}
+
+	public boolean isAdmin() {
+		return hasFlag(ADMIN);
+	}
+
+	public void setAdmin(boolean admin) {
+		setFlag(ADMIN, admin);
+	}
+}
@@ -2,23 +2,67 @@ package com.ms2sgroup.auth.provider.user;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
+import com.ms2sgroup.auth.provider.user.util.PasswordHash;
+
 class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
     
     private final CustomUser user;
-
-
-    public CustomUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, CustomUser user) {
+    private final AtenxiaClientRoles clientRoles;
+    // Users resolved in the session, told when the username or email changes
+    private final SessionUsers sessionUsers;
+    // Stored password read together with the user row. Only kept for the session that loaded it
+    private boolean storedPasswordLoaded;
+    private String storedPassword;
+    private PasswordHash passwordHash;
+    // Attributes in Keycloak's federated storage, read at most once until they are changed
+    private MultivaluedHashMap<String, String> federatedAttributes;
+
+
+    public CustomUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, CustomUser user, AtenxiaClientRoles clientRoles, SessionUsers sessionUsers) {
 	super(session, realm, model);
 	this.user = user;
+	this.clientRoles = clientRoles;
+	this.sessionUsers = sessionUsers;
+    }
+
+    boolean isStoredPasswordLoaded() {
+	return storedPasswordLoaded;
+    }
+
+    void setStoredPassword(String storedPassword) {
+	this.storedPasswordLoaded = true;
+	this.storedPassword = storedPassword;
+	this.passwordHash = null;
+    }
+
+    /**
+     * Stored password of the user, parsed on first use.
+     * @return the parsed hash, or null if none was loaded or it is not in a known format
+     */
+    PasswordHash getPasswordHash() {
+	if (passwordHash == null && storedPassword != null) {
+		passwordHash = PasswordHash.parse(storedPassword);
+	}
+	return passwordHash;
+    }
+
+    private MultivaluedHashMap<String, String> getFederatedAttributes() {
+	if (federatedAttributes == null) {
+		MultivaluedHashMap<String, String> attributes = getFederatedStorage().getAttributes(realm, this.getId());
+		federatedAttributes = attributes != null ? attributes : new MultivaluedHashMap<>();
+	}
+	return federatedAttributes;
     }
 
     @Override
@@ -28,7 +72,11 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 
     @Override
     public void setUsername(String username) {
+	String previous = user.getUsername();
 	user.setUsername(username);
+	if (sessionUsers != null) {
+		sessionUsers.usernameChanged(this, previous);
+	}
     }
 
     @Override
@@ -58,7 +106,11 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 
     @Override
     public void setEmail(String email) {
+	String previous = user.getEmail();
 	user.setEmail(email);
+	if (sessionUsers != null) {
+		sessionUsers.emailChanged(this, previous);
+	}
     }
 
     @Override
@@ -79,7 +131,12 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 		case UserModel.LAST_NAME -> setLastName(value);
 		case UserModel.FIRST_NAME -> setFirstName(value);
 		case UserModel.EMAIL -> setEmail(value);
-		default -> super.setAttribute(name, values);
+		default -> {
+			if (!AtenxiaUserAttributes.isAttribute(name)) {
+				super.setAttribute(name, values);
+				federatedAttributes = null;
+			}
+		}
 	}
     }
 
@@ -90,7 +147,7 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 		case UserModel.LAST_NAME -> getLastName();
 		case UserModel.FIRST_NAME -> getFirstName();
 		case UserModel.EMAIL -> getEmail();
-		default -> super.getFirstAttribute(name);
+		default -> AtenxiaUserAttributes.isAttribute(name) ? AtenxiaUserAttributes.getValue(user, name) : getFederatedAttributes().getFirst(name);
 	};
     }
 
@@ -101,24 +158,55 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 		case UserModel.LAST_NAME -> Stream.of(getLastName());
 		case UserModel.FIRST_NAME -> Stream.of(getFirstName());
 		case UserModel.EMAIL -> Stream.of(getEmail());
-		default -> super.getAttributeStream(name);
+		default -> {
+			if (AtenxiaUserAttributes.isAttribute(name)) {
+				yield Stream.ofNullable(AtenxiaUserAttributes.getValue(user, name));
+			}
+			List<String> values = getFederatedAttributes().get(name);
+			yield values != null ? values.stream() : Stream.empty();
+		}
 	};
     }
 
     @Override
     public Map<String, List<String>> getAttributes() {
-	MultivaluedHashMap<String, String> attributes = getFederatedStorage().getAttributes(realm, this.getId());
-	if (attributes == null) {
-		attributes = new MultivaluedHashMap<>();
-	}
+	// A copy, so callers changing the map do not change the memoized attributes
+	MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>(getFederatedAttributes());
 	attributes.add(UserModel.USERNAME, getUsername());
 	attributes.add(UserModel.EMAIL, getEmail());
 	attributes.add(UserModel.FIRST_NAME, getFirstName());
 	attributes.add(UserModel.LAST_NAME, getLastName());
+	for (String name : AtenxiaUserAttributes.NAMES) {
+		String value = AtenxiaUserAttributes.getValue(user, name);
+		attributes.remove(name);
+		if (value != null) {
+			attributes.add(name, value);
+		}
+	}
 	return attributes;
     }
 
 
+    /**
+     * Role mappings stored in Keycloak, without those of the flag-derived roles so the flags
+     * stay authoritative. The base class adds the default roles of the realm, which may
+     * include flag-derived roles, and the roles granted by the flags.
+     */
+    @Override
+    protected Stream<RoleModel> getFederatedRoleMappingsStream() {
+	return super.getFederatedRoleMappingsStream().filter(role -> !clientRoles.isManaged(role));
+    }
+
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+	return clientRoles.getRoles(user);
+    }
+
+    @Override
+    public boolean hasRole(RoleModel role) {
+	return clientRoles.hasRole(user, role) || super.hasRole(role);
+    }
+
     @Override
     public void setSingleAttribute(String name, String value) {
 	switch (name) {
@@ -126,7 +214,20 @@ class CustomUserAdapter extends AbstractUserAdapterFederatedStorage  {
 		case UserModel.LAST_NAME -> setLastName(value);
 		case UserModel.FIRST_NAME -> setFirstName(value);
 		case UserModel.EMAIL -> setEmail(value);
-		default -> super.setSingleAttribute(name, value);
+		default -> {
+			if (!AtenxiaUserAttributes.isAttribute(name)) {
+				super.setSingleAttribute(name, value);
+				federatedAttributes = null;
+			}
+		}
+	}
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+	if (!AtenxiaUserAttributes.isAttribute(name)) {
+		super.removeAttribute(name);
+		federatedAttributes = null;
 	}
     }
     
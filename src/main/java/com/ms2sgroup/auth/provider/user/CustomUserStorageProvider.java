@@ -1,20 +1,31 @@
 package com.ms2sgroup.auth.provider.user;
 
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.sql.DataSource;
+
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputValidator;
-import org.keycloak.models.ClientModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -22,13 +33,18 @@ import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.UserStorageUtil;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ms2sgroup.auth.provider.user.util.PBKDF2SHA256HashingUtil;
+import com.ms2sgroup.auth.provider.user.ProviderMetrics.Operation;
+import com.ms2sgroup.auth.provider.user.util.ExpiringLruCache;
+import com.ms2sgroup.auth.provider.user.util.PasswordHash;
 
 public class CustomUserStorageProvider implements UserStorageProvider, 
   UserLookupProvider, 
@@ -36,266 +52,707 @@ public class CustomUserStorageProvider implements UserStorageProvider,
   UserQueryProvider  {
     
     private static final Logger log = LoggerFactory.getLogger(CustomUserStorageProvider.class);
+    private static final String ALL_USERS = "*";
+    private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
+    // Usernames bound to one batch lookup, and prefetched for one group member listing
+    private static final int BATCH_SIZE = 500;
+    private static final int PREFETCH_LIMIT = 1000;
     private KeycloakSession ksession;
     private ComponentModel model;
+    private DataSource dataSource;
+    private UserCache userCache;
+    private PasswordVerifier passwordVerifier;
+    private CredentialCache credentialCache;
+    private long passwordTimeout;
+    private ExpiringLruCache<String, String> pageKeys;
+    private int fetchSize;
+    private boolean caseInsensitiveSearch;
+    private ExpiringLruCache<String, Integer> countCache;
+    private boolean estimatedCount;
+    private ProviderMetrics metrics;
+    private ReplicaRouter replicaRouter;
+    private LookupFilter lookupFilter;
+    private DatabaseGuard databaseGuard;
+    private UserDirectory directory;
+    private LoginRecorder loginRecorder;
     
-    private final String role_teacher = "TEACHER";
-    private final String role_professional = "PROFESSIONAL";
-    private final String role_admin = "ADMIN";
-    private final String role_parent="PARENT";
-    private final String role_center_admin="CENTER_ADMIN";
-    
-    private final String client = "atenxia-api-client";
+    private final Map<String, AtenxiaClientRoles> clientRoles = new HashMap<>();
+    // Streams not closed by their consumer are closed with the session
+    private final List<QueryCursor<?>> openCursors = new ArrayList<>();
+    // Users resolved in this session, for the lookups Keycloak repeats while serving a request
+    private final SessionUsers sessionUsers = new SessionUsers();
 
-    public CustomUserStorageProvider(KeycloakSession ksession, ComponentModel model) {
+    public CustomUserStorageProvider(KeycloakSession ksession, ComponentModel model, DataSource dataSource, ComponentState state, PasswordVerifier passwordVerifier) {
         this.ksession = ksession;
         this.model = model;
+        this.dataSource = dataSource;
+        this.userCache = state.getUserCache();
+        this.passwordVerifier = passwordVerifier;
+        this.credentialCache = state.getCredentialCache();
+        this.passwordTimeout = state.getPasswordTimeout();
+        this.pageKeys = state.getPageKeys();
+        this.fetchSize = state.getFetchSize();
+        this.caseInsensitiveSearch = state.isCaseInsensitiveSearch();
+        this.countCache = state.getCountCache();
+        this.estimatedCount = state.isEstimatedCount();
+        this.metrics = state.getMetrics();
+        this.replicaRouter = state.getReplicaRouter();
+        this.lookupFilter = state.getLookupFilter();
+        this.databaseGuard = state.getDatabaseGuard();
+        this.directory = state.getDirectory();
+        this.loginRecorder = state.getLoginRecorder();
     }
 
     @Override
     public void close() {
-        log.info("[I30] close()");
+        log.trace("[T30] close()");
+        new ArrayList<>(openCursors).forEach(QueryCursor::close);
+        openCursors.clear();
+        sessionUsers.clear();
     }
 
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
-        log.info("[I35] getUserById({})",id);
-        StorageId sid = new StorageId(id);
-        return getUserByUsername(realm, sid.getExternalId());
+        log.debug("[D35] getUserById({})",id);
+        return metrics.measure(Operation.GET_USER_BY_ID, () -> {
+            CustomUserAdapter known = sessionUsers.getById(id);
+            return known != null ? known : findUserByUsername(realm, new StorageId(id).getExternalId());
+        });
     }
 
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        log.info("[I41] getUserByUsername({})",username);
-        try ( Connection c = DbUtil.getConnection(this.model)) {
-            PreparedStatement st = c.prepareStatement("select username, '','', email, is_center_admin, is_parent, is_professional, is_teacher, is_staff  from atenxia_user where is_active=true and username = ?");
-            st.setString(1, username);
-            st.execute();
-            ResultSet rs = st.getResultSet();
-            if ( rs.next()) {
-                return mapUser(realm,rs);
-            }
-            else {
+        log.debug("[D41] getUserByUsername({})",username);
+        return metrics.measure(Operation.GET_USER_BY_USERNAME, () -> findUserByUsername(realm, username));
+    }
+
+    private CustomUserAdapter findUserByUsername(RealmModel realm, String username) {
+        CustomUserAdapter known = sessionUsers.getByUsername(username);
+        if (known != null) {
+            return known;
+        }
+        // Users created since the directory was last refreshed are looked up in the database
+        CustomUser cached = directory.isReady() ? directory.getByUsername(username) : userCache.getByUsername(username);
+        if (cached != null) {
+            return sessionUsers.put(mapUser(realm, cached));
+        }
+        if (!lookupFilter.mightContainUsername(username)) {
+            return null;
+        }
+        try {
+            return sessionUsers.put(loadUser(realm, UserQueries.USER_BY_USERNAME, username));
+        }
+        catch(DatabaseUnavailableException ex) {
+            if (directory.isReady()) {
+                // The directory is as good an answer as a stale user
                 return null;
             }
-        }
-        catch(SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(),ex);
+            return sessionUsers.put(staleUser(realm, userCache.getStaleByUsername(username), ex));
         }
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        log.info("[I48] getUserByEmail({})",email);
-        try ( Connection c = DbUtil.getConnection(this.model)) {
-            PreparedStatement st = c.prepareStatement("select username, '','', email, is_center_admin, is_parent, is_professional, is_teacher, is_staff from atenxia_user where is_active=true and email = ?");
-            st.setString(1, email);
-            st.execute();
-            ResultSet rs = st.getResultSet();
-            if ( rs.next()) {
-                return mapUser(realm,rs);
-            }
-            else {
+        log.debug("[D48] getUserByEmail({})",email);
+        return metrics.measure(Operation.GET_USER_BY_EMAIL, () -> findUserByEmail(realm, email));
+    }
+
+    private CustomUserAdapter findUserByEmail(RealmModel realm, String email) {
+        CustomUserAdapter known = sessionUsers.getByEmail(email);
+        if (known != null) {
+            return known;
+        }
+        CustomUser cached = directory.isReady() ? directory.getByEmail(email) : userCache.getByEmail(email);
+        if (cached != null) {
+            return sessionUsers.put(mapUser(realm, cached));
+        }
+        if (!lookupFilter.mightContainEmail(email)) {
+            return null;
+        }
+        try {
+            return sessionUsers.put(loadUser(realm, UserQueries.USER_BY_EMAIL, email));
+        }
+        catch(DatabaseUnavailableException ex) {
+            if (directory.isReady()) {
+                // The directory is as good an answer as a stale user
                 return null;
             }
+            return sessionUsers.put(staleUser(realm, userCache.getStaleByEmail(email), ex));
         }
-        catch(SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(),ex);
+    }
+
+    /**
+     * Last known version of a user while the database cannot serve requests, if the component
+     * allows serving expired users. Without it, the lookup fails.
+     */
+    private CustomUserAdapter staleUser(RealmModel realm, CustomUser stale, DatabaseUnavailableException ex) {
+        if (stale == null) {
+            throw ex;
+        }
+        log.warn("[W128] Serving stale user {}: ex={}", stale.getUsername(), ex.getMessage());
+        return mapUser(realm, stale);
+    }
+
+    /**
+     * Runs a single user lookup, caching the user and keeping its stored password on the
+     * adapter for the login that usually follows. A user the directory did not have yet is
+     * reloaded into it.
+     */
+    private CustomUserAdapter loadUser(RealmModel realm, String sql, String value) {
+        return withConnection(Collections.singletonList(value), c -> {
+            try (PreparedStatement st = c.prepareStatement(sql)) {
+                st.setQueryTimeout(databaseGuard.getLookupQueryTimeout());
+                st.setString(1, value);
+                try (ResultSet rs = st.executeQuery()) {
+                    if ( rs.next()) {
+                        CustomUser user = readUser(rs);
+                        userCache.put(user);
+                        reloadIntoDirectory(user);
+                        CustomUserAdapter adapter = mapUser(realm,user);
+                        adapter.setStoredPassword(rs.getString("password"));
+                        return adapter;
+                    }
+                    else {
+                        lookupFilter.falsePositive();
+                        return null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Has the directory, once loaded, pick up a user found in the database only.
+     */
+    private void reloadIntoDirectory(CustomUser user) {
+        if (directory.isReady()) {
+            directory.reload(user.getUsername());
         }
     }
 
     @Override
     public boolean supportsCredentialType(String credentialType) {
-        log.info("[I57] supportsCredentialType({})",credentialType);
+        log.trace("[T57] supportsCredentialType({})",credentialType);
         return PasswordCredentialModel.TYPE.endsWith(credentialType);
     }
 
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        log.info("[I57] isConfiguredFor(realm={},user={},credentialType={})",realm.getName(), user.getUsername(), credentialType);
+        log.trace("[T57] isConfiguredFor(realm={},user={},credentialType={})",realm.getName(), user.getUsername(), credentialType);
 
         return supportsCredentialType(credentialType);
     }
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        log.info("[I57] isValid(realm={},user={},credentialInput.type={})",realm.getName(), user.getUsername(), credentialInput.getType());
+        log.debug("[D57] isValid(realm={},user={},credentialInput.type={})",realm.getName(), user.getUsername(), credentialInput.getType());
+        return metrics.measure(Operation.IS_VALID, () -> validate(user, credentialInput));
+    }
+
+    private boolean validate(UserModel user, CredentialInput credentialInput) {
         if( !this.supportsCredentialType(credentialInput.getType())) {
             return false;
         }
-        StorageId sid = new StorageId(user.getId());
-        String username = sid.getExternalId();
-        
-        try ( Connection c = DbUtil.getConnection(this.model)) {
-            PreparedStatement st = c.prepareStatement("select password from atenxia_user where is_active=true and username = ?");
-            st.setString(1, username);
-            st.execute();
-            ResultSet rs = st.getResultSet();
-            if ( rs.next()) {
-                String pwd = rs.getString(1);
-                String hash = Optional.ofNullable(pwd).orElse("");
-                String[] components = hash.split("\\$");
-                return new PBKDF2SHA256HashingUtil(credentialInput.getChallengeResponse(), components[2], Integer.valueOf(components[1])).validatePassword(components[3]);
-                
+        PasswordHash hash;
+        if (user instanceof CustomUserAdapter adapter && adapter.isStoredPasswordLoaded()) {
+            hash = adapter.getPasswordHash();
+        }
+        else {
+            String storedPassword = loadPassword(user);
+            if (user instanceof CustomUserAdapter adapter) {
+                adapter.setStoredPassword(storedPassword);
+                hash = adapter.getPasswordHash();
             }
             else {
-                return false;
+                hash = PasswordHash.parse(storedPassword);
             }
         }
-        catch(SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(),ex);
+        if (hash == null || !PasswordHash.PBKDF2_SHA256.equals(hash.getAlgorithm())) {
+            loginRecorder.record(user.getUsername(), false);
+            return false;
+        }
+        String password = credentialInput.getChallengeResponse();
+        if (credentialCache.isVerified(user.getUsername(), hash, password)) {
+            loginRecorder.record(user.getUsername(), true);
+            return true;
+        }
+        long start = System.nanoTime();
+        Boolean valid = passwordVerifier.verify(password, hash, passwordTimeout);
+        metrics.recordPasswordVerification(System.nanoTime() - start);
+        // Verifications the pool could not run say nothing about the password, they are not recorded
+        if (valid != null) {
+            loginRecorder.record(user.getUsername(), valid);
         }
+        if (Boolean.TRUE.equals(valid)) {
+            credentialCache.put(user.getUsername(), hash, password);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the stored password for users that were not loaded with it, for example
+     * users served from the {@link UserCache} or imported into local storage.
+     */
+    private String loadPassword(UserModel user) {
+        // Users imported in import mode have a local id, only their username leads back to atenxia_user
+        String username = user.getFederationLink() != null || StorageId.isLocalStorage(user.getId())
+          ? user.getUsername()
+          : new StorageId(user.getId()).getExternalId();
+
+        return withConnection(Collections.singletonList(username), c -> {
+            try (PreparedStatement st = c.prepareStatement(UserQueries.PASSWORD_BY_USERNAME)) {
+                st.setQueryTimeout(databaseGuard.getLookupQueryTimeout());
+                st.setString(1, username);
+                try (ResultSet rs = st.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            }
+        });
     }
 
     
     @Override
     public int getUsersCount(RealmModel realm) {
-        log.info("[I93] getUsersCount: realm={}", realm.getName() );
-        try ( Connection c = DbUtil.getConnection(this.model)) {
-            Statement st = c.createStatement();
-            st.execute("select count(*) from atenxia_user where is_active=true");
-            ResultSet rs = st.getResultSet();
-            rs.next();
-            return rs.getInt(1);
+        log.debug("[D93] getUsersCount: realm={}", realm.getName() );
+        return metrics.measure(Operation.COUNT, this::countAllUsers);
+    }
+
+    private int countAllUsers() {
+        if (directory.isReady()) {
+            return directory.size();
         }
-        catch(SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(),ex);
+        Integer cached = countCache.get(ALL_USERS);
+        if (cached != null) {
+            return cached;
         }
+        int count = estimatedCount ? estimateUsersCount() : countUsers(UserSearchQuery.fromSearch(null, false));
+        countCache.put(ALL_USERS, count);
+        return count;
     }
 
     @Override
-    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
-        log.info("[I113] getUsers: realm={}", realm.getName());
-        
-        if (maxResults == null)
-            maxResults = 10;
-        
-        try ( Connection c = DbUtil.getConnection(this.model)) {
-            PreparedStatement st = c.prepareStatement("select username, '','', email, is_center_admin, is_parent, is_professional, is_teacher, is_staff from atenxia_user where is_active=true order by username limit ? offset ?");
-            st.setInt(1, maxResults);
-            st.setInt(2, firstResult);
-            st.execute();
-            ResultSet rs = st.getResultSet();
-            List<UserModel> users = new ArrayList<>();
-            while(rs.next()) {
-                users.add(mapUser(realm,rs));
+    public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        return getUsersCount(realm);
+    }
+
+    // Deprecated in the SPI, whose default would count by streaming every matching user
+    @Deprecated
+    @Override
+    public int getUsersCount(RealmModel realm, String search) {
+        log.debug("[D117] getUsersCount: realm={}, search={}", realm.getName(), search);
+        return metrics.measure(Operation.COUNT, () -> countUsers(UserSearchQuery.fromSearch(search, caseInsensitiveSearch)));
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params) {
+        log.debug("[D123] getUsersCount: realm={}, params={}", realm.getName(), params.keySet());
+        return metrics.measure(Operation.COUNT, () -> countUsers(UserSearchQuery.fromParams(params, caseInsensitiveSearch)));
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Set<String> groupIds) {
+        log.debug("[D341] getUsersCount: realm={}, groups={}", realm.getName(), groupIds.size());
+        return metrics.measure(Operation.COUNT, () -> countGroupMembers(realm, groupIds, UserSearchQuery.fromSearch(null, false)));
+    }
+
+    // Deprecated in the SPI, whose default would count by streaming every matching user
+    @Deprecated
+    @Override
+    public int getUsersCount(RealmModel realm, String search, Set<String> groupIds) {
+        log.debug("[D347] getUsersCount: realm={}, search={}, groups={}", realm.getName(), search, groupIds.size());
+        return metrics.measure(Operation.COUNT, () -> countGroupMembers(realm, groupIds, UserSearchQuery.fromSearch(search, caseInsensitiveSearch)));
+    }
+
+    @Override
+    public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
+        log.debug("[D353] getUsersCount: realm={}, params={}, groups={}", realm.getName(), params.keySet(), groupIds.size());
+        return metrics.measure(Operation.COUNT, () -> countGroupMembers(realm, groupIds, UserSearchQuery.fromParams(params, caseInsensitiveSearch)));
+    }
+
+    /**
+     * Number of users of the component that are direct members of any of the groups and
+     * match the query. Memberships live in Keycloak's federated storage, so only the members
+     * are loaded and matched in memory, never the whole table.
+     */
+    private int countGroupMembers(RealmModel realm, Set<String> groupIds, UserSearchQuery query) {
+        if (groupIds == null || groupIds.isEmpty() || query.matchesNothing()) {
+            return 0;
+        }
+        Set<String> usernames = new HashSet<>();
+        for (String groupId : groupIds) {
+            GroupModel group = realm.getGroupById(groupId);
+            if (group != null) {
+                groupMembers(realm, group, null, null).forEach(usernames::add);
             }
-            return users.stream();
         }
-        catch(SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(),ex);
+        int count = 0;
+        for (CustomUser user : loadUsers(usernames)) {
+            if (query.matches(user)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countUsers(UserSearchQuery query) {
+        if (query.matchesNothing()) {
+            return 0;
         }
+        if (directory.isReady()) {
+            return directory.count(query);
+        }
+        return withConnection(c -> {
+            try (PreparedStatement st = c.prepareStatement(UserQueries.count(query.getPredicate()))) {
+                st.setQueryTimeout(databaseGuard.getSearchQueryTimeout());
+                List<Object> params = query.getParams();
+                for (int i = 0; i < params.size(); i++) {
+                    st.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rs = st.executeQuery()) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Number of active users according to the Postgres planner statistics, which costs no
+     * table access. Falls back to an exact count when no estimate is available.
+     */
+    private int estimateUsersCount() {
+        Integer estimate = withConnection(c -> {
+            try ( Statement st = c.createStatement()) {
+                st.setQueryTimeout(databaseGuard.getLookupQueryTimeout());
+                try (ResultSet rs = st.executeQuery(UserQueries.ESTIMATE_COUNT)) {
+                    if (rs.next()) {
+                        Matcher m = PLAN_ROWS.matcher(rs.getString(1));
+                        if (m.find()) {
+                            return (int) Math.min(Integer.MAX_VALUE, Long.parseLong(m.group(1)));
+                        }
+                    }
+                }
+            }
+            catch(SQLException ex) {
+                log.warn("[W175] Unable to estimate users count: ex={}", ex.getMessage());
+            }
+            return null;
+        });
+        return estimate != null ? estimate : countUsers(UserSearchQuery.fromSearch(null, false));
     }
 
     @Override
-    public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
-        log.info("[I139] searchForUser: realm={}", realm.getName());
-
-        try (Connection c = DbUtil.getConnection(this.model)) {
-            PreparedStatement st = c.prepareStatement("select username, '','', email, is_center_admin, is_parent, is_professional, is_teacher, is_staff from atenxia_user where is_active=true and username like ? order by username limit ? offset ?");
-            st.setString(1, search);
-            st.setInt(2, maxResults);
-            st.setInt(3, firstResult);
-            st.execute();
-            ResultSet rs = st.getResultSet();
-            List<UserModel> users = new ArrayList<>();
-            while (rs.next()) {
-                users.add(mapUser(realm, rs));
+    public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
+        log.debug("[D113] getGroupMembers: realm={}", realm.getName());
+        // atenxia_user has no groups: memberships of our users live in Keycloak's federated
+        // storage, which Keycloak already queries on its own for group member listings, then
+        // resolves with one getUserById per member. Load the members of the page it is about
+        // to resolve in one query so those calls are answered from memory.
+        int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        int max = maxResults == null || maxResults < 0 ? PREFETCH_LIMIT : Math.min(maxResults, PREFETCH_LIMIT);
+        List<String> usernames = groupMembers(realm, group, first, max).collect(Collectors.toList());
+        getUsersByUsername(realm, usernames);
+        return Stream.empty();
+    }
+
+    /**
+     * Usernames of the users of this component that are direct members of the group.
+     */
+    private Stream<String> groupMembers(RealmModel realm, GroupModel group, Integer first, Integer max) {
+        return UserStorageUtil.userFederatedStorage(ksession)
+          .getMembershipStream(realm, group, first, max)
+          .map(StorageId::new)
+          .filter(sid -> model.getId().equals(sid.getProviderId()))
+          .map(StorageId::getExternalId);
+    }
+
+    @Override
+    public Stream<UserModel> getRoleMembersStream(RealmModel realm, RoleModel role, Integer firstResult, Integer maxResults) {
+        log.debug("[D122] getRoleMembers: realm={}, role={}", realm.getName(), role.getName());
+        String attribute = getClientRoles(realm).getFlagAttribute(role);
+        if (attribute == null) {
+            return Stream.empty();
+        }
+        UserSearchQuery query = UserSearchQuery.fromAttribute(attribute, "true", false);
+        if (new UserStorageProviderModel(model).isImportEnabled()) {
+            // Imported users hold their flag roles as local mappings, which Keycloak lists
+            // along with ours: leave them to it rather than returning them twice
+            query.excluding(importedRoleMembers(realm, role));
+        }
+        return metrics.measure(Operation.SEARCH, () -> queryUsers(realm, query, firstResult, maxResults));
+    }
+
+    /**
+     * Usernames of the users of this component imported into local storage with the role.
+     */
+    private Set<String> importedRoleMembers(RealmModel realm, RoleModel role) {
+        return UserStoragePrivateUtil.userLocalStorage(ksession)
+          .getRoleMembersStream(realm, role)
+          .filter(user -> model.getId().equals(user.getFederationLink()))
+          .map(UserModel::getUsername)
+          .collect(Collectors.toSet());
+    }
+
+    /**
+     * Resolves many users at once, with one query per {@value #BATCH_SIZE} usernames not
+     * already cached or resolved in the session. Usernames of missing or inactive users are
+     * skipped.
+     * @return the users found, in no particular order
+     */
+    List<UserModel> getUsersByUsername(RealmModel realm, Collection<String> usernames) {
+        log.debug("[D147] getUsersByUsername: realm={}, count={}", realm.getName(), usernames.size());
+        return metrics.measure(Operation.GET_USERS_BY_USERNAME, () -> {
+            List<UserModel> users = new ArrayList<>(usernames.size());
+            List<String> unknown = new ArrayList<>();
+            for (String username : new LinkedHashSet<>(usernames)) {
+                CustomUserAdapter known = sessionUsers.getByUsername(username);
+                if (known != null) {
+                    users.add(known);
+                }
+                else {
+                    unknown.add(username);
+                }
+            }
+            loadUsers(unknown).forEach(user -> users.add(sessionUsers.put(mapUser(realm, user))));
+            return users;
+        });
+    }
+
+    private List<CustomUser> loadUsers(Collection<String> usernames) {
+        List<CustomUser> users = new ArrayList<>(usernames.size());
+        boolean fromDirectory = directory.isReady();
+        List<String> missing = new ArrayList<>();
+        for (String username : new LinkedHashSet<>(usernames)) {
+            CustomUser cached = fromDirectory ? directory.getByUsername(username) : userCache.getByUsername(username);
+            if (cached != null) {
+                users.add(cached);
+            }
+            else if (lookupFilter.mightContainUsername(username)) {
+                missing.add(username);
             }
-            return users.stream();
-        } catch (SQLException ex) {
-            throw new RuntimeException("Database error:" + ex.getMessage(), ex);
         }
+        if (missing.isEmpty()) {
+            return users;
+        }
+        return withConnection(missing, c -> {
+            try (PreparedStatement st = c.prepareStatement(UserQueries.USERS_BY_USERNAMES)) {
+                st.setQueryTimeout(databaseGuard.getLookupQueryTimeout());
+                for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+                    List<String> batch = missing.subList(i, Math.min(missing.size(), i + BATCH_SIZE));
+                    Array array = c.createArrayOf("varchar", batch.toArray());
+                    try {
+                        st.setArray(1, array);
+                        try (ResultSet rs = st.executeQuery()) {
+                            while (rs.next()) {
+                                CustomUser user = readUser(rs);
+                                userCache.put(user);
+                                reloadIntoDirectory(user);
+                                users.add(user);
+                            }
+                        }
+                    }
+                    finally {
+                        array.free();
+                    }
+                }
+            }
+            return users;
+        });
+    }
+
+    @Override
+    public Stream<UserModel> searchForUserStream(RealmModel realm, String search, Integer firstResult, Integer maxResults) {
+        log.debug("[D139] searchForUser: realm={}", realm.getName());
+        return metrics.measure(Operation.SEARCH, () -> queryUsers(realm, UserSearchQuery.fromSearch(search, caseInsensitiveSearch), firstResult, maxResults));
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-	if (params.containsKey(UserModel.USERNAME)) {
-	    return searchForUserStream(realm, params.get(UserModel.USERNAME), firstResult, maxResults);
-	} 
-	else 
-	{
-	    return getGroupMembersStream(realm, null, firstResult, maxResults);
-	}
+        log.debug("[D150] searchForUser: realm={}, params={}", realm.getName(), params.keySet());
+        return metrics.measure(Operation.SEARCH, () -> queryUsers(realm, UserSearchQuery.fromParams(params, caseInsensitiveSearch), firstResult, maxResults));
     }
 
     @Override
     public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-        return Stream.empty();
+        log.debug("[D260] searchForUserByUserAttribute: realm={}, attribute={}", realm.getName(), attrName);
+        return metrics.measure(Operation.SEARCH, () -> queryUsers(realm, UserSearchQuery.fromAttribute(attrName, attrValue, caseInsensitiveSearch), null, null));
     }
     
-    private UserModel mapUser(RealmModel realm, ResultSet rs) throws SQLException {
-        
-	
-	String username= rs.getString("username");
-	String email = rs.getString("email");
-	boolean centerAdmin = rs.getBoolean("is_center_admin");
-        boolean parent = rs.getBoolean("is_parent");
-        boolean professional = rs.getBoolean("is_professional");
-        boolean teacher = rs.getBoolean("is_teacher");
-        boolean admin = rs.getBoolean("is_staff");
-        
-	CustomUser userAux = new CustomUser(username, email,"","", centerAdmin, parent, professional, teacher, admin);
-        CustomUserAdapter user = new CustomUserAdapter(ksession, realm, model, userAux);
-                
-        
-        try
-        {
-            RoleModel roleTeacher = getRoleFromString(realm, this.client, this.role_teacher);
-            user.deleteRoleMapping(roleTeacher);
-            
-            RoleModel roleParent = getRoleFromString(realm, this.client, this.role_parent);
-            user.deleteRoleMapping(roleParent);
-            
-            RoleModel roleProfessional = getRoleFromString(realm, this.client, this.role_professional);
-            user.deleteRoleMapping(roleProfessional);
-            
-            RoleModel roleCenterAdmin = getRoleFromString(realm, this.client, this.role_center_admin);
-            user.deleteRoleMapping(roleCenterAdmin);
-            
-            RoleModel roleAdmin = getRoleFromString(realm, this.client, this.role_admin);
-            user.deleteRoleMapping(roleAdmin);
-            
-            if (teacher)
-                user.grantRole(roleTeacher);
-            if (parent)
-                user.grantRole(roleParent);
-            if (professional)
-                user.grantRole(roleProfessional);
-            if (centerAdmin)
-                user.grantRole(roleCenterAdmin);
-            if (admin)
-                user.grantRole(roleAdmin);
-            
-        }
-        catch(Exception e)
-        {
-            
-        }
-        
-                
-        
-        
+    /**
+     * Streams active users matching the predicate in username order. When an earlier page of
+     * the same query ended at {@code firstResult}, the next page seeks past its last username
+     * instead of using an offset. Rows are mapped as the stream is consumed, so the measured
+     * search time covers running the query but not reading the rows. Once the in-memory
+     * directory is loaded it answers instead.
+     */
+    private Stream<UserModel> queryUsers(RealmModel realm, UserSearchQuery query, Integer firstResult, Integer maxResults) {
+        if (query.matchesNothing()) {
+            return Stream.empty();
+        }
+        String predicate = query.getPredicate();
+        List<Object> params = query.getParams();
+        int first = firstResult == null || firstResult < 0 ? 0 : firstResult;
+        int max = maxResults == null || maxResults < 0 ? -1 : maxResults;
+        if (max == 0) {
+            return Stream.empty();
+        }
+        if (directory.isReady()) {
+            return directory.search(query, first, max).map(user -> mapUser(realm, user));
+        }
+        String signature = predicate + Arrays.deepToString(params.toArray());
+        String lastKey = first > 0 ? pageKeys.get(signature + '@' + first) : null;
+
+        boolean offset = first > 0 && lastKey == null;
+        String sql = UserQueries.search(predicate, lastKey != null, max > 0, offset);
+        List<Object> values = new ArrayList<>(params);
+        if (lastKey != null) {
+            values.add(lastKey);
+        }
+        if (max > 0) {
+            values.add(max);
+        }
+        if (offset) {
+            values.add(first);
+        }
+
+        int[] rows = { 0 };
+        String[] lastUsername = { null };
+        QueryCursor<UserModel> cursor;
+        // The cursor holds its connection, and so its permit, until it is closed
+        databaseGuard.acquire();
+        try {
+            cursor = QueryCursor.open(getConnection(), sql, values, fetchSize, databaseGuard.getSearchQueryTimeout(), rs -> {
+                CustomUser user = readUser(rs);
+                rows[0]++;
+                lastUsername[0] = user.getUsername();
+                return mapUser(realm, user);
+            });
+        }
+        catch(SQLException ex) {
+            RuntimeException error = DatabaseUnavailableException.of(ex);
+            databaseGuard.release(error);
+            throw error;
+        }
+        catch(RuntimeException ex) {
+            databaseGuard.release(ex);
+            throw ex;
+        }
+        openCursors.add(cursor);
+        return cursor.onClose(failed -> {
+            databaseGuard.release(failed);
+            openCursors.remove(cursor);
+            if (lastUsername[0] != null) {
+                pageKeys.put(signature + '@' + (first + rows[0]), lastUsername[0]);
+            }
+        }).stream();
+    }
+
+    CustomUser readUser(ResultSet rs) throws SQLException {
+        CustomUser user = mapRow(rs);
+        metrics.rowMapped();
         return user;
     }
-    
-    
-    private RoleModel getRoleFromString(RealmModel realm, String clientId, String roleName) {
-   	RoleModel role = null;
-           ClientModel client = realm.getClientByClientId(clientId);
-           if (client != null) {
-           	try
-                   {
-           	    role = client.getRole(roleName);
-                   }
-                   catch(Exception e)
-                   {
-                   }
-           }
-           
-           return role;
-       }
-    
-    
+
+    /**
+     * Reads the {@link UserQueries#USER_COLUMNS} of the current row, which are always the
+     * first columns selected, by position.
+     */
+    static CustomUser mapRow(ResultSet rs) throws SQLException {
+	String username= rs.getString(1);
+	String email = rs.getString(2);
+	int flags = (rs.getBoolean(3) ? CustomUser.CENTER_ADMIN : 0)
+	  | (rs.getBoolean(4) ? CustomUser.PARENT : 0)
+	  | (rs.getBoolean(5) ? CustomUser.PROFESSIONAL : 0)
+	  | (rs.getBoolean(6) ? CustomUser.TEACHER : 0)
+	  | (rs.getBoolean(7) ? CustomUser.ADMIN : 0);
+	return new CustomUser(username, email, flags);
+    }
+
+    CustomUserAdapter mapUser(RealmModel realm, CustomUser userAux) {
+        long start = System.nanoTime();
+        CustomUserAdapter adapter = new CustomUserAdapter(ksession, realm, model, userAux, getClientRoles(realm), sessionUsers);
+        metrics.record(Operation.MAP_USER, System.nanoTime() - start);
+        return adapter;
+    }
+
+    interface SqlWork<T> {
+        T run(Connection c) throws SQLException;
+    }
+
+    /**
+     * Runs database work on a pooled connection, within the concurrency limit and the circuit
+     * breaker of the component.
+     * @throws DatabaseUnavailableException if the request is refused, no database can be reached
+     *   or the query times out
+     */
+    private <T> T withConnection(SqlWork<T> work) {
+        return withConnection(List.of(), work);
+    }
+
+    /**
+     * Runs database work reading the given users, by username or email, on the primary if one
+     * of them changed too recently for the replicas to have it.
+     */
+    private <T> T withConnection(Collection<String> names, SqlWork<T> work) {
+        databaseGuard.acquire();
+        RuntimeException error = null;
+        try (Connection c = getConnection(names)) {
+            return work.run(c);
+        }
+        catch(SQLException ex) {
+            error = DatabaseUnavailableException.of(ex);
+            throw error;
+        }
+        catch(RuntimeException ex) {
+            error = ex;
+            throw ex;
+        }
+        finally {
+            databaseGuard.release(error);
+        }
+    }
+
+    /**
+     * Takes a pooled connection for a read, from a healthy replica if there is one and from
+     * the primary otherwise, recording how long the pool made us wait for it.
+     * @throws DatabaseUnavailableException if no database could be reached
+     */
+    private Connection getConnection() throws SQLException {
+        return getConnection(List.of());
+    }
+
+    /**
+     * Takes a pooled connection for a read of the given users, from the primary if one of
+     * them changed too recently for the replicas to have it.
+     */
+    private Connection getConnection(Collection<String> names) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            DataSource replica = replicaRouter.nextReplica(names);
+            if (replica != null) {
+                try {
+                    return replica.getConnection();
+                }
+                catch(SQLException ex) {
+                    replicaRouter.markDown(replica, ex);
+                }
+            }
+            try {
+                return this.dataSource.getConnection();
+            }
+            catch(SQLException ex) {
+                replicaRouter.markUnavailable(ex);
+                throw new DatabaseUnavailableException("Database unavailable: " + ex.getMessage(), ex);
+            }
+        }
+        finally {
+            metrics.recordConnectionAcquisition(System.nanoTime() - start);
+        }
+    }
+
+    private AtenxiaClientRoles getClientRoles(RealmModel realm) {
+        return clientRoles.computeIfAbsent(realm.getId(), id -> new AtenxiaClientRoles(realm));
+    }
 
 }
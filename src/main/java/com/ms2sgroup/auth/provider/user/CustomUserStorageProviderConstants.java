@@ -6,4 +6,43 @@ public final class CustomUserStorageProviderConstants {
     public static final String CONFIG_KEY_DB_USERNAME = "postgres";
     public static final String CONFIG_KEY_DB_PASSWORD = "secret";
     public static final String CONFIG_KEY_VALIDATION_QUERY = "validationQuery";
+    public static final String CONFIG_KEY_POOL_MAX_SIZE = "poolMaxSize";
+    public static final String CONFIG_KEY_POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+    public static final String CONFIG_KEY_POOL_VALIDATION_TIMEOUT = "poolValidationTimeout";
+    public static final String CONFIG_KEY_CACHE_TTL = "cacheTtl";
+    public static final String CONFIG_KEY_CACHE_MAX_ENTRIES = "cacheMaxEntries";
+    public static final String CONFIG_KEY_PASSWORD_TIMEOUT = "passwordVerificationTimeout";
+    public static final String CONFIG_KEY_CREDENTIAL_CACHE_TTL = "credentialCacheTtl";
+    public static final String CONFIG_KEY_CREDENTIAL_CACHE_MAX_ENTRIES = "credentialCacheMaxEntries";
+    public static final String CONFIG_KEY_FETCH_SIZE = "fetchSize";
+    public static final String CONFIG_KEY_CASE_INSENSITIVE_SEARCH = "caseInsensitiveSearch";
+    public static final String CONFIG_KEY_COUNT_CACHE_TTL = "countCacheTtl";
+    public static final String CONFIG_KEY_ESTIMATED_COUNT = "estimatedCount";
+    public static final String CONFIG_KEY_SYNC_BATCH_SIZE = "syncBatchSize";
+    public static final String CONFIG_KEY_SYNC_MODIFIED_COLUMN = "syncModifiedColumn";
+    public static final String CONFIG_KEY_LOG_SAMPLE_RATE = "logSampleRate";
+    public static final String CONFIG_KEY_PREPARE_THRESHOLD = "prepareThreshold";
+    public static final String CONFIG_KEY_REPLICA_JDBC_URLS = "replicaJdbcUrls";
+    public static final String CONFIG_KEY_REPLICA_HEALTH_CHECK_INTERVAL = "replicaHealthCheckInterval";
+    public static final String CONFIG_KEY_STALE_IF_ERROR = "staleIfError";
+    public static final String CONFIG_KEY_POOL_CONNECTION_TIMEOUT = "poolConnectionTimeout";
+    public static final String CONFIG_KEY_LOOKUP_FILTER = "lookupFilter";
+    public static final String CONFIG_KEY_LOOKUP_FILTER_FPP = "lookupFilterFalsePositiveRate";
+    public static final String CONFIG_KEY_LOOKUP_FILTER_REFRESH = "lookupFilterRefreshInterval";
+    public static final String CONFIG_KEY_CHANGE_CHANNEL = "changeNotificationChannel";
+    public static final String CONFIG_KEY_MAX_CONCURRENT_QUERIES = "maxConcurrentQueries";
+    public static final String CONFIG_KEY_QUERY_QUEUE_TIMEOUT = "queryQueueTimeout";
+    public static final String CONFIG_KEY_LOOKUP_QUERY_TIMEOUT = "lookupQueryTimeout";
+    public static final String CONFIG_KEY_SEARCH_QUERY_TIMEOUT = "searchQueryTimeout";
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+    public static final String CONFIG_KEY_CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+    public static final String CONFIG_KEY_WARMUP_USERS = "warmupUsers";
+    public static final String CONFIG_KEY_WARMUP_ORDER = "warmupOrder";
+    public static final String CONFIG_KEY_WARMUP_RATE = "warmupRate";
+    public static final String CONFIG_KEY_DIRECTORY = "inMemoryDirectory";
+    public static final String CONFIG_KEY_DIRECTORY_REFRESH = "inMemoryDirectoryRefreshInterval";
+    public static final String CONFIG_KEY_LOGIN_RECORDING = "loginRecording";
+    public static final String CONFIG_KEY_LOGIN_TABLE = "loginTable";
+    public static final String CONFIG_KEY_LOGIN_FLUSH_INTERVAL = "loginFlushInterval";
+    public static final String CONFIG_KEY_LOGIN_QUEUE_SIZE = "loginQueueSize";
 }
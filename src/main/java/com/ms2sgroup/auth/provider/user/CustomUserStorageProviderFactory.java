@@ -1,23 +1,44 @@
 package com.ms2sgroup.auth.provider.user;
 
 import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
+import javax.sql.DataSource;
+
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
 
-public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider> {
+public class CustomUserStorageProviderFactory implements UserStorageProviderFactory<CustomUserStorageProvider>, ImportSynchronization {
     private static final Logger log = LoggerFactory.getLogger(CustomUserStorageProviderFactory.class);    
     protected final List<ProviderConfigProperty> configMetadata;
+    // Settings of this provider, as opposed to those Keycloak keeps in the component config
+    private final Set<String> configKeys;
+    private final DataSourceRegistry dataSources = new DataSourceRegistry();
+    private final Map<String, ComponentState> states = new ConcurrentHashMap<>();
+    private PasswordVerifier passwordVerifier;
     
     public CustomUserStorageProviderFactory() {
         log.info("[I24] CustomUserStorageProviderFactory created");
@@ -59,19 +80,357 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
             .helpText("SQL query used to validate a connection")
             .defaultValue("select 1")
             .add()
+          .property()
+            .name(CONFIG_KEY_REPLICA_JDBC_URLS)
+            .label("Read Replica JDBC URLs")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Comma separated JDBC URLs of read replicas of the user database, reached with the same credentials. Lookups, searches and counts are spread across healthy replicas and go to the primary when none is healthy")
+            .add()
+          .property()
+            .name(CONFIG_KEY_REPLICA_HEALTH_CHECK_INTERVAL)
+            .label("Replica Health Check Interval")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds between checks of each read replica with the validation query")
+            .defaultValue(String.valueOf(ReplicaRouter.DEFAULT_HEALTH_CHECK_INTERVAL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_POOL_MAX_SIZE)
+            .label("Connection Pool Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of pooled connections to the user database")
+            .defaultValue(String.valueOf(DbUtil.DEFAULT_POOL_MAX_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_POOL_IDLE_TIMEOUT)
+            .label("Connection Idle Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a pooled connection may stay idle before it is closed")
+            .defaultValue(String.valueOf(DbUtil.DEFAULT_POOL_IDLE_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_POOL_VALIDATION_TIMEOUT)
+            .label("Connection Validation Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds to wait for the validation query before a pooled connection is discarded")
+            .defaultValue(String.valueOf(DbUtil.DEFAULT_POOL_VALIDATION_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_POOL_CONNECTION_TIMEOUT)
+            .label("Connection Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a request waits for a pooled connection before its database is considered unreachable. Should be greater than the validation timeout")
+            .defaultValue(String.valueOf(DbUtil.DEFAULT_POOL_CONNECTION_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PREPARE_THRESHOLD)
+            .label("Prepare Threshold")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Executions of a query on a connection before Postgres keeps it as a server-side prepared statement. 1 prepares on first use, 0 disables it")
+            .defaultValue(String.valueOf(DbUtil.DEFAULT_PREPARE_THRESHOLD))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CACHE_TTL)
+            .label("User Cache TTL")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a looked up user is served from memory before the database is queried again. 0 disables the cache")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_CACHE_TTL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CACHE_MAX_ENTRIES)
+            .label("User Cache Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of users kept in memory; the least recently used are evicted first")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_CACHE_MAX_ENTRIES))
+            .add()
+          .property()
+            .name(CONFIG_KEY_STALE_IF_ERROR)
+            .label("Serve Stale Users On Error")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds past the user cache TTL during which a cached user is still returned if no database can be reached. 0 fails the lookup instead")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_STALE_IF_ERROR))
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOOKUP_FILTER)
+            .label("Unknown User Filter")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Keep a Bloom filter of active usernames and emails so lookups of unknown users need no query. Requires a Change Notification Channel, through which users created in atenxia_user are added at once")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOOKUP_FILTER_FPP)
+            .label("Unknown User Filter False Positive Rate")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Share of unknown users the filter lets through to the database. Lower rates take more memory")
+            .defaultValue(String.valueOf(LookupFilter.DEFAULT_FALSE_POSITIVE_RATE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOOKUP_FILTER_REFRESH)
+            .label("Unknown User Filter Refresh Interval")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds between additions of recently modified users to the filter, using the modification timestamp column")
+            .defaultValue(String.valueOf(LookupFilter.DEFAULT_REFRESH_INTERVAL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CHANGE_CHANNEL)
+            .label("Change Notification Channel")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Postgres channel on which the trigger of db/atenxia_user_notify.sql notifies changed users, so every node drops them from its caches at once. Leave empty to rely on cache expiry")
+            .add()
+          .property()
+            .name(CONFIG_KEY_MAX_CONCURRENT_QUERIES)
+            .label("Max Concurrent Queries")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Requests allowed to use the database at once, including those waiting for a pooled connection, so a slow database cannot hold every Keycloak request thread. 0 for no limit")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_MAX_CONCURRENT_QUERIES))
+            .add()
+          .property()
+            .name(CONFIG_KEY_QUERY_QUEUE_TIMEOUT)
+            .label("Query Queue Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Milliseconds a request waits for its turn when Max Concurrent Queries are in progress before it fails")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_QUEUE_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOOKUP_QUERY_TIMEOUT)
+            .label("Lookup Query Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a user or password lookup may run before it is cancelled. 0 for no limit")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_LOOKUP_QUERY_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SEARCH_QUERY_TIMEOUT)
+            .label("Search Query Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a user search or count may run before it is cancelled. 0 for no limit")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_SEARCH_QUERY_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_FAILURES)
+            .label("Circuit Breaker Failures")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Consecutive database failures after which requests fail at once instead of trying the database. 0 disables the circuit breaker")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_CIRCUIT_BREAKER_FAILURES))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_TIME)
+            .label("Circuit Breaker Open Time")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds requests fail at once after the circuit breaker opens, before one request tries the database again")
+            .defaultValue(String.valueOf(DatabaseGuard.DEFAULT_CIRCUIT_BREAKER_OPEN_TIME))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WARMUP_USERS)
+            .label("Cache Warm-up Users")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Users loaded into the user cache in the background at startup and after each configuration change, so first logins do not all query the database. They stay cached for the User Cache TTL, so no more users are loaded than the Cache Warm-up Rate allows within it. 0 disables the warm-up")
+            .defaultValue(String.valueOf(CacheWarmer.DEFAULT_WARMUP_USERS))
+            .add()
+          .property()
+            .name(CONFIG_KEY_WARMUP_ORDER)
+            .label("Cache Warm-up Order")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Order by clause picking the users to warm up first, made of atenxia_user columns with an optional asc or desc. When empty, the users with the latest successful logins in the login table are picked if Login Recording is enabled, and users in username order otherwise")
+            .defaultValue(CacheWarmer.DEFAULT_WARMUP_ORDER)
+            .add()
+          .property()
+            .name(CONFIG_KEY_WARMUP_RATE)
+            .label("Cache Warm-up Rate")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Users loaded per second at most during the warm-up")
+            .defaultValue(String.valueOf(CacheWarmer.DEFAULT_WARMUP_RATE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_DIRECTORY)
+            .label("In-Memory Directory")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Hold every active user, without its password, in memory so lookups, searches and counts need no query. Takes about 50 bytes per user. Lookups of users it does not hold yet query the database, unless the Unknown User Filter rules them out. Searches and counts only find users created in atenxia_user after the next refresh or change notification")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_DIRECTORY_REFRESH)
+            .label("In-Memory Directory Refresh Interval")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds between loads of the users modified since the previous one, using the modification timestamp column")
+            .defaultValue(String.valueOf(UserDirectory.DEFAULT_REFRESH_INTERVAL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOGIN_RECORDING)
+            .label("Login Recording")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Record the last successful login and the failed attempts of each user in the login table, see db/atenxia_user_login.sql. Logins do not wait for the write")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOGIN_TABLE)
+            .label("Login Table")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Table the logins are written to, optionally prefixed with its schema")
+            .defaultValue(LoginRecorder.DEFAULT_LOGIN_TABLE)
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOGIN_FLUSH_INTERVAL)
+            .label("Login Flush Interval")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds between writes of the queued logins, in one batch")
+            .defaultValue(String.valueOf(LoginRecorder.DEFAULT_FLUSH_INTERVAL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOGIN_QUEUE_SIZE)
+            .label("Login Queue Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Logins kept waiting for the next write; logins beyond it are not recorded")
+            .defaultValue(String.valueOf(LoginRecorder.DEFAULT_QUEUE_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_PASSWORD_TIMEOUT)
+            .label("Password Verification Timeout")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Milliseconds a login waits for its password to be verified before it fails")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_PASSWORD_TIMEOUT))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CREDENTIAL_CACHE_TTL)
+            .label("Verified Credential Cache TTL")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds a successful password verification is remembered, so repeated logins with the same password skip the hash derivation. 0 disables it")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_CREDENTIAL_CACHE_TTL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CREDENTIAL_CACHE_MAX_ENTRIES)
+            .label("Verified Credential Cache Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Maximum number of remembered verifications")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_CREDENTIAL_CACHE_MAX_ENTRIES))
+            .add()
+          .property()
+            .name(CONFIG_KEY_FETCH_SIZE)
+            .label("Fetch Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Number of rows fetched per round trip when streaming user listings and searches")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_FETCH_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_CASE_INSENSITIVE_SEARCH)
+            .label("Case Insensitive Search")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Compare usernames and emails in lower case when searching. Requires indexes on lower(username) and lower(email)")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_COUNT_CACHE_TTL)
+            .label("User Count Cache TTL")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Seconds the total number of users is reused before it is counted again. 0 counts every time")
+            .defaultValue(String.valueOf(ComponentState.DEFAULT_COUNT_CACHE_TTL))
+            .add()
+          .property()
+            .name(CONFIG_KEY_ESTIMATED_COUNT)
+            .label("Estimated User Count")
+            .type(ProviderConfigProperty.BOOLEAN_TYPE)
+            .helpText("Report the total number of users from the database planner statistics instead of counting rows")
+            .defaultValue("false")
+            .add()
+          .property()
+            .name(CONFIG_KEY_SYNC_BATCH_SIZE)
+            .label("Sync Batch Size")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Number of users imported per transaction when synchronizing in import mode")
+            .defaultValue(String.valueOf(UserSynchronizer.DEFAULT_BATCH_SIZE))
+            .add()
+          .property()
+            .name(CONFIG_KEY_SYNC_MODIFIED_COLUMN)
+            .label("Modification Timestamp Column")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Indexed timestamp column of atenxia_user updated on every change, used to synchronize changed users")
+            .defaultValue(UserSynchronizer.DEFAULT_MODIFIED_COLUMN)
+            .add()
+          .property()
+            .name(CONFIG_KEY_LOG_SAMPLE_RATE)
+            .label("Call Log Sample Rate")
+            .type(ProviderConfigProperty.STRING_TYPE)
+            .helpText("Log one provider call in this many at info level with its duration. 0 logs calls at debug level only")
+            .defaultValue(String.valueOf(ProviderMetrics.DEFAULT_LOG_SAMPLE_RATE))
+            .add()
           .build();   
-          
+        configKeys = configMetadata.stream().map(ProviderConfigProperty::getName).collect(Collectors.toUnmodifiableSet());
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        int threads = config.getInt("pbkdf2Threads", Runtime.getRuntime().availableProcessors());
+        int queueSize = config.getInt("pbkdf2QueueSize", PasswordVerifier.DEFAULT_QUEUE_SIZE);
+        log.info("[I131] Password verification pool: threads={}, queueSize={}", threads, queueSize);
+        passwordVerifier = new PasswordVerifier(threads, queueSize);
+        MBeans.register("PasswordVerifier", null, passwordVerifier);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Components are otherwise set up on their first login, which is too late to warm up
+        // their cache or load their directory
+        factory.register(event -> {
+            if (event instanceof PostMigrationEvent) {
+                KeycloakModelUtils.runJobInTransaction(factory, this::startWarmUps);
+            }
+        });
+    }
+
+    private void startWarmUps(KeycloakSession session) {
+        session.realms().getRealmsStream()
+          .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+          .filter(model -> getId().equals(model.getProviderId()))
+          .filter(ComponentState::isWarmedUp)
+          .forEach(model -> {
+              // One component failing to start must not keep the others cold or fail the startup
+              try {
+                  getState(model);
+              }
+              catch(RuntimeException ex) {
+                  log.warn("[W389] Unable to start component {}: ex={}", model.getId(), ex.getMessage());
+              }
+          });
     }
 
     @Override
     public CustomUserStorageProvider create(KeycloakSession ksession, ComponentModel model) {
-        log.info("[I63] creating new CustomUserStorageProvider");
-        return new CustomUserStorageProvider(ksession,model);
+        log.debug("[D63] creating new CustomUserStorageProvider");
+        ComponentState state = getState(model);
+        return new CustomUserStorageProvider(ksession,model,dataSources.getDataSource(model),state,passwordVerifier);
+    }
+
+    /**
+     * Returns the state of the component, replacing it if its configuration changed. The pool
+     * is acquired only once the state being replaced is closed: a changed pool setting closes
+     * the old pool, which the old state needs to write the logins it still has queued.
+     */
+    private ComponentState getState(ComponentModel model) {
+        ComponentState state = states.get(model.getId());
+        if (state != null && state.matches(model)) {
+            return state;
+        }
+        // Checked before the current state is closed, which keeps serving until the settings are fixed
+        ComponentState.validate(model);
+        return states.compute(model.getId(), (id, current) -> {
+            if (current != null && current.matches(model)) {
+                return current;
+            }
+            if (current != null) {
+                current.close();
+            }
+            return new ComponentState(model, dataSources.getDataSource(model), configKeys);
+        });
+    }
+
+    private void removeState(String componentId) {
+        ComponentState state = states.remove(componentId);
+        if (state != null) {
+            state.close();
+        }
     }
 
     @Override
     public String getId() {
-        log.info("[I69] getId()");
+        log.trace("[T69] getId()");
         return "External-Database";
     }
 
@@ -84,10 +443,18 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
 
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config) throws ComponentValidationException {
-        
-       try (Connection c = DbUtil.getConnection(config)) {
+       try {
+           ComponentState.validate(config);
+       }
+       catch(IllegalStateException ex) {
+           log.warn("[W437] Invalid configuration: ex={}", ex.getMessage());
+           throw new ComponentValidationException(ex.getMessage());
+       }
+
+       try (Connection c = DbUtil.getConnection(config);
+            Statement st = c.createStatement()) {
            log.info("[I84] Testing connection..." );
-           c.createStatement().execute(config.get(CONFIG_KEY_VALIDATION_QUERY));
+           st.execute(config.get(CONFIG_KEY_VALIDATION_QUERY));
            log.info("[I92] Connection OK !" );
        }
        catch(Exception ex) {
@@ -96,13 +463,70 @@ public class CustomUserStorageProviderFactory implements UserStorageProviderFact
        }
     }
 
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        log.info("[I212] sync()" );
+        if (!model.isImportEnabled()) {
+            log.info("[I214] Import is disabled for component {}, nothing to synchronize", model.getId());
+            return SynchronizationResult.ignored();
+        }
+        return new UserSynchronizer(sessionFactory, realmId, model, getDataSource(model)).syncAll();
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        log.info("[I222] syncSince({})", lastSync );
+        if (!model.isImportEnabled()) {
+            log.info("[I224] Import is disabled for component {}, nothing to synchronize", model.getId());
+            return SynchronizationResult.ignored();
+        }
+        if (lastSync == null) {
+            return sync(sessionFactory, realmId, model);
+        }
+        return new UserSynchronizer(sessionFactory, realmId, model, getDataSource(model)).syncSince(lastSync);
+    }
+
+    /**
+     * Pool of the component for work outside its providers, taken after the state like in
+     * {@link #create}.
+     */
+    private DataSource getDataSource(ComponentModel model) {
+        getState(model);
+        return dataSources.getDataSource(model);
+    }
+
     @Override
     public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
         log.info("[I94] onUpdate()" );
+        // Saving the component also flushes every user cached for it. The state goes first so
+        // the logins it still has queued are written before its pool is closed
+        removeState(oldModel.getId());
+        dataSources.release(oldModel.getId());
+        if (ComponentState.isWarmedUp(newModel)) {
+            getState(newModel);
+        }
     }
 
     @Override
     public void onCreate(KeycloakSession session, RealmModel realm, ComponentModel model) {
         log.info("[I99] onCreate()" );
     }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        log.info("[I104] preRemove()" );
+        removeState(model.getId());
+        dataSources.release(model.getId());
+    }
+
+    @Override
+    public void close() {
+        log.info("[I110] close()" );
+        states.keySet().forEach(this::removeState);
+        dataSources.close();
+        if (passwordVerifier != null) {
+            MBeans.unregister("PasswordVerifier", null);
+            passwordVerifier.close();
+        }
+    }
 }
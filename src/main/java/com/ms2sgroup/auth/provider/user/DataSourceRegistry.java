@@ -0,0 +1,83 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Connection pools owned by {@link CustomUserStorageProviderFactory}.
+ * Components pointing at the same database with the same pool settings share one pool;
+ * a pool is closed once the last component using it is released.
+ */
+class DataSourceRegistry {
+    private static final Logger log = LoggerFactory.getLogger(DataSourceRegistry.class);
+
+    private final Map<String, SharedPool> pools = new HashMap<>();
+    private final Map<String, String> poolKeyByComponent = new HashMap<>();
+
+    /**
+     * Returns the pool for the given component, creating it on first use. If the component
+     * configuration changed since the pool was acquired, the old pool is released first.
+     */
+    synchronized DataSource getDataSource(ComponentModel model) {
+        String key = DbUtil.poolKey(model);
+        String currentKey = poolKeyByComponent.get(model.getId());
+        if (key.equals(currentKey)) {
+            return pools.get(key).dataSource;
+        }
+        if (currentKey != null) {
+            release(model.getId());
+        }
+
+        SharedPool pool = pools.get(key);
+        if (pool == null) {
+            log.info("[I38] Creating connection pool for component {}", model.getId());
+            pool = new SharedPool(DbUtil.createDataSource(model));
+            pools.put(key, pool);
+        }
+        pool.components.add(model.getId());
+        poolKeyByComponent.put(model.getId(), key);
+        return pool.dataSource;
+    }
+
+    /**
+     * Detaches a component from its pool, closing the pool if no other component uses it.
+     */
+    synchronized void release(String componentId) {
+        String key = poolKeyByComponent.remove(componentId);
+        if (key == null) {
+            return;
+        }
+        SharedPool pool = pools.get(key);
+        pool.components.remove(componentId);
+        if (pool.components.isEmpty()) {
+            log.info("[I62] Closing connection pool {}", pool.dataSource.getPoolName());
+            pools.remove(key);
+            pool.dataSource.close();
+        }
+    }
+
+    synchronized void close() {
+        pools.values().forEach(pool -> pool.dataSource.close());
+        pools.clear();
+        poolKeyByComponent.clear();
+    }
+
+    private static class SharedPool {
+        private final HikariDataSource dataSource;
+        private final Set<String> components = new HashSet<>();
+
+        private SharedPool(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.time.Instant;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Keeps a slow or failing database of one component from taking every Keycloak request
+ * thread with it. At most a fixed number of requests use the database at once, and the others
+ * wait for their turn for a bounded time only. After a number of consecutive failures the
+ * circuit opens and requests fail at once; when the open time has passed one trial request
+ * goes through, and its outcome closes or reopens the circuit.
+ * <p>
+ * Both refusals surface as {@link DatabaseUnavailableException}, so lookups fall back to
+ * stale users like they do when the database cannot be reached.
+ */
+class DatabaseGuard implements DatabaseGuardMXBean {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseGuard.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT_QUERIES = 20;
+    public static final int DEFAULT_QUEUE_TIMEOUT = 1000;
+    public static final int DEFAULT_LOOKUP_QUERY_TIMEOUT = 5;
+    public static final int DEFAULT_SEARCH_QUERY_TIMEOUT = 30;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_TIME = 30;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String componentId;
+    private final int maxConcurrentQueries;
+    private final Semaphore permits;
+    private final long queueTimeoutMillis;
+    private final int lookupQueryTimeout;
+    private final int searchQueryTimeout;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder trips = new LongAdder();
+    private volatile State state = State.CLOSED;
+    private long openUntil;
+    private volatile String lastEvent;
+
+    DatabaseGuard(ComponentModel model) {
+        this.componentId = model.getId();
+        this.maxConcurrentQueries = model.get(CONFIG_KEY_MAX_CONCURRENT_QUERIES, DEFAULT_MAX_CONCURRENT_QUERIES);
+        this.permits = maxConcurrentQueries > 0 ? new Semaphore(maxConcurrentQueries) : null;
+        this.queueTimeoutMillis = model.get(CONFIG_KEY_QUERY_QUEUE_TIMEOUT, DEFAULT_QUEUE_TIMEOUT);
+        this.lookupQueryTimeout = model.get(CONFIG_KEY_LOOKUP_QUERY_TIMEOUT, DEFAULT_LOOKUP_QUERY_TIMEOUT);
+        this.searchQueryTimeout = model.get(CONFIG_KEY_SEARCH_QUERY_TIMEOUT, DEFAULT_SEARCH_QUERY_TIMEOUT);
+        this.failureThreshold = model.get(CONFIG_KEY_CIRCUIT_BREAKER_FAILURES, DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        this.openNanos = TimeUnit.SECONDS.toNanos(model.get(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_TIME, DEFAULT_CIRCUIT_BREAKER_OPEN_TIME));
+    }
+
+    /**
+     * Seconds a single user lookup may run, 0 for no limit.
+     */
+    int getLookupQueryTimeout() {
+        return lookupQueryTimeout;
+    }
+
+    /**
+     * Seconds a search or count may run, 0 for no limit.
+     */
+    int getSearchQueryTimeout() {
+        return searchQueryTimeout;
+    }
+
+    /**
+     * Admits a request to the database. Every successful call must be followed by one call
+     * to {@link #release}.
+     * @throws DatabaseUnavailableException if the circuit is open or no permit became
+     *   available within the queue timeout
+     */
+    void acquire() {
+        boolean trial = false;
+        if (state != State.CLOSED) {
+            trial = admitWhileOpen();
+        }
+        if (permits == null) {
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejected.increment();
+            if (trial) {
+                // The next request makes the trial instead
+                synchronized (this) {
+                    state = State.OPEN;
+                }
+            }
+            throw new DatabaseUnavailableException("Database of component " + componentId + " is overloaded: "
+              + maxConcurrentQueries + " requests in progress", null);
+        }
+    }
+
+    /**
+     * @return true if the request is the trial made once the open time has passed
+     * @throws DatabaseUnavailableException while the circuit is open
+     */
+    private synchronized boolean admitWhileOpen() {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        shortCircuited.increment();
+        throw new DatabaseUnavailableException("Database of component " + componentId
+          + " is failing, requests are refused for up to " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + "s", null);
+    }
+
+    /**
+     * Ends a request admitted by {@link #acquire}.
+     * @param failed whether the database failed the request, which counts towards opening the circuit
+     */
+    void release(boolean failed) {
+        if (permits != null) {
+            permits.release();
+        }
+        recordOutcome(failed);
+    }
+
+    /**
+     * Ends a request admitted by {@link #acquire} that may have thrown. Only errors showing the
+     * database unavailable count towards opening the circuit: a query the database rejects, for
+     * a syntax error or a missing privilege, fails again however long the circuit stays open.
+     * @param error what the request threw, or null if it succeeded
+     */
+    void release(RuntimeException error) {
+        release(error instanceof DatabaseUnavailableException);
+    }
+
+    private void recordOutcome(boolean failed) {
+        if (!failed) {
+            consecutiveFailures.set(0);
+            if (state == State.HALF_OPEN) {
+                close("Trial request succeeded");
+            }
+            return;
+        }
+        int failures = consecutiveFailures.incrementAndGet();
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                open("Trial request failed");
+            }
+            else if (state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold) {
+                open(failures + " consecutive failures");
+            }
+        }
+    }
+
+    private synchronized void open(String reason) {
+        state = State.OPEN;
+        openUntil = System.nanoTime() + openNanos;
+        trips.increment();
+        log.warn("[W166] Circuit breaker of component {} is open for {}s: {}", componentId, TimeUnit.NANOSECONDS.toSeconds(openNanos), reason);
+        event("Open: " + reason);
+    }
+
+    private synchronized void close(String reason) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        consecutiveFailures.set(0);
+        log.info("[I176] Circuit breaker of component {} is closed: {}", componentId, reason);
+        event("Closed: " + reason);
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public String getCircuitState() {
+        return state.name();
+    }
+
+    @Override
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    @Override
+    public int getInFlight() {
+        return permits != null ? maxConcurrentQueries - permits.availablePermits() : 0;
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getShortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    @Override
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    @Override
+    public void closeCircuit() {
+        close("Closed through JMX");
+    }
+}
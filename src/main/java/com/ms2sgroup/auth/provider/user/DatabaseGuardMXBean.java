@@ -0,0 +1,42 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the concurrency limit and circuit breaker around the database of one provider
+ * component.
+ */
+public interface DatabaseGuardMXBean {
+
+    /**
+     * CLOSED, OPEN or HALF_OPEN.
+     */
+    String getCircuitState();
+
+    int getMaxConcurrentQueries();
+
+    /**
+     * Requests currently holding a permit, whether waiting for a connection or querying.
+     */
+    int getInFlight();
+
+    /**
+     * Requests that waited for a permit longer than the queue timeout.
+     */
+    long getRejected();
+
+    /**
+     * Requests failed without trying the database because the circuit was open.
+     */
+    long getShortCircuited();
+
+    /**
+     * Times the circuit opened.
+     */
+    long getTrips();
+
+    String getLastEvent();
+
+    /**
+     * Closes the circuit now, without waiting for a trial request to succeed.
+     */
+    void closeCircuit();
+}
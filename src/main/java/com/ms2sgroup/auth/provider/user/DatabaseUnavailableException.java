@@ -0,0 +1,42 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+import org.keycloak.models.ModelException;
+
+/**
+ * The database of the component cannot serve the request: neither the primary nor any read
+ * replica could be reached, too many requests are already using it, its circuit breaker is
+ * open after repeated failures, or a query timed out or lost its connection.
+ */
+public class DatabaseUnavailableException extends ModelException {
+
+    private static final long serialVersionUID = 1L;
+
+    // Postgres query_canceled, raised when the statement timeout expires
+    private static final String QUERY_CANCELED = "57014";
+    // Postgres connection exceptions, and shutdowns or recovery of the server
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+    private static final String OPERATOR_INTERVENTION = "57P";
+
+    public DatabaseUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Exception for a failed statement: a timeout or a lost connection becomes a
+     * {@link DatabaseUnavailableException}, so lookups fall back to stale users, and any
+     * other error is rethrown as is.
+     */
+    static RuntimeException of(SQLException ex) {
+        String state = ex.getSQLState();
+        if (ex instanceof SQLTimeoutException || ex instanceof SQLTransientConnectionException
+          || (state != null && (state.equals(QUERY_CANCELED) || state.startsWith(CONNECTION_EXCEPTION_CLASS)
+            || state.startsWith(OPERATOR_INTERVENTION)))) {
+            return new DatabaseUnavailableException("Database unavailable: " + ex.getMessage(), ex);
+        }
+        return new RuntimeException("Database error:" + ex.getMessage(), ex);
+    }
+}
@@ -3,12 +3,31 @@ package com.ms2sgroup.auth.provider.user;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.keycloak.component.ComponentModel;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
 import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
 
 public class DbUtil {
 
+    public static final int DEFAULT_POOL_MAX_SIZE = 10;
+    public static final int DEFAULT_POOL_IDLE_TIMEOUT = 600;
+    public static final int DEFAULT_POOL_VALIDATION_TIMEOUT = 5;
+    public static final int DEFAULT_POOL_CONNECTION_TIMEOUT = 30;
+    public static final int DEFAULT_PREPARE_THRESHOLD = 5;
+    // Names put in SQL statements as is, for configured columns and channels
+    static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    // SQL states of Postgres and H2 for an unknown column
+    static final Set<String> UNDEFINED_COLUMN = Set.of("42703", "42122");
+    // Modification timestamps are written by other hosts, whose clocks may run behind ours
+    static final long CLOCK_SKEW_MILLIS = 60_000L;
+
     public static Connection getConnection(ComponentModel config) throws SQLException{
         String driverClass = config.get(CONFIG_KEY_JDBC_DRIVER);
         try {
@@ -17,9 +36,74 @@ public class DbUtil {
         catch(ClassNotFoundException nfe) {
             throw new RuntimeException("Invalid JDBC driver: " + driverClass + ". Please check if your driver if properly installed");
         }
-        
+
         return DriverManager.getConnection(config.get(CONFIG_KEY_JDBC_URL),
           config.get(CONFIG_KEY_DB_USERNAME),
           config.get(CONFIG_KEY_DB_PASSWORD));
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a bounded connection pool for the database described by the given component.
+     * Connections are validated with the configured validation query before being handed out.
+     */
+    public static HikariDataSource createDataSource(ComponentModel config) {
+        return createDataSource(config, config.get(CONFIG_KEY_JDBC_URL), "atenxia-" + config.getId());
+    }
+
+    /**
+     * Creates a pool like {@link #createDataSource(ComponentModel)} for another database URL
+     * of the same component, such as a read replica.
+     */
+    public static HikariDataSource createDataSource(ComponentModel config, String jdbcUrl, String poolName) {
+        String driverClass = config.get(CONFIG_KEY_JDBC_DRIVER);
+        try {
+            Class.forName(driverClass);
+        }
+        catch(ClassNotFoundException nfe) {
+            throw new RuntimeException("Invalid JDBC driver: " + driverClass + ". Please check if your driver if properly installed");
+        }
+
+        HikariConfig hc = new HikariConfig();
+        hc.setPoolName(poolName);
+        hc.setDriverClassName(driverClass);
+        hc.setJdbcUrl(jdbcUrl);
+        hc.setUsername(config.get(CONFIG_KEY_DB_USERNAME));
+        hc.setPassword(config.get(CONFIG_KEY_DB_PASSWORD));
+        hc.setMaximumPoolSize(config.get(CONFIG_KEY_POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE));
+        hc.setMinimumIdle(0);
+        hc.setIdleTimeout(TimeUnit.SECONDS.toMillis(config.get(CONFIG_KEY_POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT)));
+        hc.setValidationTimeout(TimeUnit.SECONDS.toMillis(config.get(CONFIG_KEY_POOL_VALIDATION_TIMEOUT, DEFAULT_POOL_VALIDATION_TIMEOUT)));
+        hc.setConnectionTimeout(TimeUnit.SECONDS.toMillis(config.get(CONFIG_KEY_POOL_CONNECTION_TIMEOUT, DEFAULT_POOL_CONNECTION_TIMEOUT)));
+        String validationQuery = config.get(CONFIG_KEY_VALIDATION_QUERY);
+        if (validationQuery != null && !validationQuery.isBlank()) {
+            hc.setConnectionTestQuery(validationQuery);
+        }
+        if (jdbcUrl != null && jdbcUrl.startsWith("jdbc:postgresql:")) {
+            // Executions of the same statement text on a connection after which the driver
+            // switches to a named server-side prepared statement, parsed and planned once
+            hc.addDataSourceProperty("prepareThreshold", config.get(CONFIG_KEY_PREPARE_THRESHOLD, DEFAULT_PREPARE_THRESHOLD));
+        }
+        // Pools start empty and open connections on first use, so an unreachable
+        // database does not prevent the component from being created
+        hc.setInitializationFailTimeout(-1);
+        return new HikariDataSource(hc);
+    }
+
+    /**
+     * Key identifying the pool a component can share with other components: same database,
+     * same credentials and same pool settings.
+     */
+    static String poolKey(ComponentModel config) {
+        return String.join("|",
+          String.valueOf(config.get(CONFIG_KEY_JDBC_DRIVER)),
+          String.valueOf(config.get(CONFIG_KEY_JDBC_URL)),
+          String.valueOf(config.get(CONFIG_KEY_DB_USERNAME)),
+          String.valueOf(config.get(CONFIG_KEY_DB_PASSWORD)),
+          String.valueOf(config.get(CONFIG_KEY_VALIDATION_QUERY)),
+          String.valueOf(config.get(CONFIG_KEY_POOL_MAX_SIZE)),
+          String.valueOf(config.get(CONFIG_KEY_POOL_IDLE_TIMEOUT)),
+          String.valueOf(config.get(CONFIG_KEY_POOL_VALIDATION_TIMEOUT)),
+          String.valueOf(config.get(CONFIG_KEY_POOL_CONNECTION_TIMEOUT)),
+          String.valueOf(config.get(CONFIG_KEY_PREPARE_THRESHOLD)));
+    }
+}
@@ -0,0 +1,277 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Writes the outcome of password checks to the login table of one component (see
+ * {@code db/atenxia_user_login.sql}) without making logins wait for the write. Outcomes are
+ * put on a bounded queue, and dropped and counted when it is full. A background thread drains
+ * the queue at a fixed interval, folds the outcomes of each user into one row and writes the
+ * rows in batches, in one transaction, on the primary database. Closing the recorder writes
+ * what is still queued.
+ */
+class LoginRecorder implements LoginRecorderMXBean {
+    private static final Logger log = LoggerFactory.getLogger(LoginRecorder.class);
+
+    public static final String DEFAULT_LOGIN_TABLE = "atenxia_user_login";
+    public static final int DEFAULT_FLUSH_INTERVAL = 5;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final Pattern TABLE = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+    private static final int BATCH_SIZE = 500;
+    // Time a flush in progress is given to complete when closing
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final String componentId;
+    private final DataSource dataSource;
+    private final String table;
+    private final int queueCapacity;
+    private final BlockingQueue<Login> queue;
+    private final ScheduledExecutorService writer;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastFlushMillis;
+    private volatile String lastEvent;
+    private boolean failing;
+
+    LoginRecorder(ComponentModel model, DataSource dataSource) {
+        this.componentId = model.getId();
+        this.dataSource = dataSource;
+        this.table = model.get(CONFIG_KEY_LOGIN_TABLE, DEFAULT_LOGIN_TABLE);
+        this.queueCapacity = Math.max(1, model.get(CONFIG_KEY_LOGIN_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+        if (!model.get(CONFIG_KEY_LOGIN_RECORDING, false)) {
+            this.queue = null;
+            this.writer = null;
+            return;
+        }
+        validate(model);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        int interval = Math.max(1, model.get(CONFIG_KEY_LOGIN_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL));
+        this.writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atenxia-login-writer-" + componentId);
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+    }
+
+    boolean isEnabled() {
+        return queue != null;
+    }
+
+    /**
+     * Rejects a table that is not a plain or schema qualified name, as it is put in the login
+     * queries as is. Only checked when recording is enabled.
+     */
+    static void validate(ComponentModel model) {
+        String table = model.get(CONFIG_KEY_LOGIN_TABLE, DEFAULT_LOGIN_TABLE);
+        if (model.get(CONFIG_KEY_LOGIN_RECORDING, false) && !TABLE.matcher(table).matches()) {
+            throw new IllegalStateException("Invalid login table: " + table);
+        }
+    }
+
+    /**
+     * Login table, validated as a plain or schema qualified name when recording is enabled.
+     */
+    String getTable() {
+        return table;
+    }
+
+    /**
+     * Queues the outcome of a password check. Never blocks.
+     */
+    void record(String username, boolean success) {
+        if (queue == null || username == null) {
+            return;
+        }
+        if (queue.offer(new Login(username, success, System.currentTimeMillis()))) {
+            recorded.increment();
+        }
+        else {
+            dropped.increment();
+        }
+    }
+
+    private synchronized void flush() {
+        List<Login> logins = new ArrayList<>();
+        queue.drainTo(logins);
+        if (logins.isEmpty()) {
+            return;
+        }
+        // Rows in username order, so concurrent flushes of other nodes lock them in the same order
+        Map<String, Outcome> outcomes = new TreeMap<>();
+        for (Login login : logins) {
+            outcomes.computeIfAbsent(login.username, username -> new Outcome()).add(login);
+        }
+        long started = System.nanoTime();
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement st = c.prepareStatement(UserQueries.upsertLogin(table))) {
+            c.setAutoCommit(false);
+            int batched = 0;
+            for (Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+                Outcome outcome = entry.getValue();
+                st.setString(1, entry.getKey());
+                setTimestamp(st, 2, outcome.lastLogin);
+                st.setInt(3, outcome.failedAttempts);
+                setTimestamp(st, 4, outcome.lastFailedLogin);
+                st.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    st.executeBatch();
+                }
+            }
+            st.executeBatch();
+            c.commit();
+            written.add(outcomes.size());
+            lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            if (failing) {
+                failing = false;
+                log.info("[I137] Login recording of component {} recovered", componentId);
+            }
+            log.debug("[D139] Wrote {} logins of {} users for component {} in {} ms", logins.size(), outcomes.size(), componentId, lastFlushMillis);
+            event("Wrote " + logins.size() + " logins of " + outcomes.size() + " users");
+        }
+        catch(SQLException | RuntimeException ex) {
+            failed.add(logins.size());
+            // Every flush fails the same way until the table is fixed
+            if (!failing) {
+                failing = true;
+                log.warn("[W147] Unable to write logins of component {} to {}: ex={}", componentId, table, ex.getMessage());
+            }
+            else {
+                log.debug("[D150] Unable to write logins of component {} to {}: ex={}", componentId, table, ex.getMessage());
+            }
+            event("Lost " + logins.size() + " logins: " + ex.getMessage());
+        }
+    }
+
+    private static void setTimestamp(PreparedStatement st, int index, long millis) throws SQLException {
+        if (millis == 0) {
+            st.setNull(index, Types.TIMESTAMP_WITH_TIMEZONE);
+        }
+        else {
+            st.setTimestamp(index, new Timestamp(millis));
+        }
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    @Override
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getWritten() {
+        return written.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    /**
+     * Stops the periodic flush and writes the logins still queued, on the calling thread.
+     */
+    void close() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                writer.shutdownNow();
+            }
+        }
+        catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.info("[I226] Login recording of component {} closed: {} recorded, {} dropped, {} failed", componentId, recorded.sum(), dropped.sum(), failed.sum());
+    }
+
+    private static class Login {
+        private final String username;
+        private final boolean success;
+        private final long time;
+
+        private Login(String username, boolean success, long time) {
+            this.username = username;
+            this.success = success;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Logins of one user folded into the row written for them.
+     */
+    private static class Outcome {
+        private long lastLogin;
+        // Failed attempts since the last successful login, or since the previous flush
+        private int failedAttempts;
+        private long lastFailedLogin;
+
+        private void add(Login login) {
+            if (login.success) {
+                lastLogin = Math.max(lastLogin, login.time);
+                failedAttempts = 0;
+            }
+            else {
+                failedAttempts++;
+                lastFailedLogin = Math.max(lastFailedLogin, login.time);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the queue of login outcomes written behind to the database by one provider
+ * component.
+ */
+public interface LoginRecorderMXBean {
+
+    int getQueueCapacity();
+
+    int getQueueDepth();
+
+    /**
+     * Login outcomes queued since startup.
+     */
+    long getRecorded();
+
+    /**
+     * Login outcomes dropped because the queue was full.
+     */
+    long getDropped();
+
+    /**
+     * Rows written, one per user and flush.
+     */
+    long getWritten();
+
+    /**
+     * Login outcomes lost because their flush failed.
+     */
+    long getFailed();
+
+    /**
+     * Milliseconds the last flush took.
+     */
+    long getLastFlushMillis();
+
+    String getLastEvent();
+}
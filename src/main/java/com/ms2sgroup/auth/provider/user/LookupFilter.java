@@ -0,0 +1,341 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ms2sgroup.auth.provider.user.util.BloomFilter;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Bloom filters of the active usernames and emails of one component, so lookups of names
+ * that are certainly unknown (typos, enumeration, users of other providers) cost no query.
+ * <p>
+ * The filters are built in the background by streaming {@code atenxia_user} and then topped
+ * up at every refresh with the users modified since the previous one, using the sync
+ * modification column. A user created between two refreshes would be reported certainly
+ * absent until the next one, so the filter is only used along with the change notifications
+ * of {@link ChangeListener}, which add new users as soon as they are committed. Deactivated
+ * users stay in the filters, which only costs a query, until the filters are rebuilt, which
+ * happens once they hold more names than they were sized for. Without the modification column,
+ * the filters are rebuilt every hour instead of topped up. Until the first build completes
+ * every lookup goes to the database.
+ */
+class LookupFilter implements LookupFilterMXBean {
+    private static final Logger log = LoggerFactory.getLogger(LookupFilter.class);
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final int DEFAULT_REFRESH_INTERVAL = 30;
+    // Room for growth before the filters must be rebuilt
+    private static final double HEADROOM = 1.5;
+    private static final int MIN_CAPACITY = 1000;
+    // Without the modification column, users missed by the change notifications are only
+    // added by a rebuild
+    private static final long REBUILD_INTERVAL_MILLIS = 3_600_000L;
+
+    private final String componentId;
+    private final DataSource dataSource;
+    private final int fetchSize;
+    private final boolean enabled;
+    private final double falsePositiveRate;
+    private final String modifiedColumn;
+    private final ScheduledExecutorService refresher;
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder definiteMisses = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final AtomicLong inserted = new AtomicLong();
+    private volatile Filters filters;
+    // Users added while the filters are being built, to put in the new ones as well
+    private final Object pendingLock = new Object();
+    private List<String[]> pending;
+    private long lastRefresh;
+    private long lastBuild;
+    private boolean incremental = true;
+
+    LookupFilter(ComponentModel model, DataSource dataSource) {
+        this.componentId = model.getId();
+        this.dataSource = dataSource;
+        this.fetchSize = model.get(CONFIG_KEY_FETCH_SIZE, ComponentState.DEFAULT_FETCH_SIZE);
+        String channel = model.get(CONFIG_KEY_CHANGE_CHANNEL);
+        boolean requested = model.get(CONFIG_KEY_LOOKUP_FILTER, false);
+        this.enabled = requested && channel != null && !channel.isBlank();
+        this.falsePositiveRate = parseRate(model.get(CONFIG_KEY_LOOKUP_FILTER_FPP));
+        this.modifiedColumn = model.get(CONFIG_KEY_SYNC_MODIFIED_COLUMN, UserSynchronizer.DEFAULT_MODIFIED_COLUMN);
+        if (requested && !enabled) {
+            log.warn("[W79] Lookup filter of component {} disabled: it needs a change notification channel to learn of new users", componentId);
+        }
+        if (!enabled) {
+            this.refresher = null;
+            return;
+        }
+        int interval = Math.max(1, model.get(CONFIG_KEY_LOOKUP_FILTER_REFRESH, DEFAULT_REFRESH_INTERVAL));
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atenxia-lookup-filter-" + componentId);
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(() -> refresh(false), 0, interval, TimeUnit.SECONDS);
+    }
+
+    private static double parseRate(String value) {
+        try {
+            return value != null && !value.isBlank() ? Double.parseDouble(value.trim()) : DEFAULT_FALSE_POSITIVE_RATE;
+        }
+        catch(NumberFormatException ex) {
+            log.warn("[W90] Invalid lookup filter false positive rate {}, using {}", value, DEFAULT_FALSE_POSITIVE_RATE);
+            return DEFAULT_FALSE_POSITIVE_RATE;
+        }
+    }
+
+    /**
+     * Whether a user with this username may exist. False means it certainly does not.
+     */
+    boolean mightContainUsername(String username) {
+        Filters current = filters;
+        return current == null || username == null || check(current.usernames.mightContain(username));
+    }
+
+    /**
+     * Whether a user with this email may exist. False means it certainly does not.
+     */
+    boolean mightContainEmail(String email) {
+        Filters current = filters;
+        return current == null || email == null || check(current.emails.mightContain(email));
+    }
+
+    private boolean check(boolean mightContain) {
+        checks.increment();
+        if (!mightContain) {
+            definiteMisses.increment();
+        }
+        return mightContain;
+    }
+
+    /**
+     * Records that a lookup the filter let through found nobody.
+     */
+    void falsePositive() {
+        if (filters != null) {
+            falsePositives.increment();
+        }
+    }
+
+    /**
+     * Adds a user that became known outside the periodic refresh.
+     */
+    void add(String username, String email) {
+        synchronized (pendingLock) {
+            if (pending != null) {
+                pending.add(new String[] { username, email });
+            }
+        }
+        Filters current = filters;
+        if (current != null) {
+            current.add(username, email);
+            inserted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the users modified since the last refresh in the background, for when change
+     * notifications may have been missed.
+     */
+    void refreshNow() {
+        if (refresher != null) {
+            refresher.execute(() -> refresh(true));
+        }
+    }
+
+    /**
+     * @param resync whether notifications may have been missed, which without the modification
+     *   column takes a rebuild to make up for
+     */
+    private synchronized void refresh(boolean resync) {
+        try {
+            long started = System.currentTimeMillis();
+            Filters current = filters;
+            if (current == null || inserted.get() > current.capacity
+              || (!incremental && (resync || started - lastBuild >= REBUILD_INTERVAL_MILLIS))) {
+                build();
+            }
+            else if (incremental) {
+                long since = lastRefresh - DbUtil.CLOCK_SKEW_MILLIS;
+                int added = load(current, UserQueries.filterChangedUsers(modifiedColumn), List.of(new Timestamp(since)));
+                log.debug("[D157] Added {} changed users to the lookup filter of component {}", added, componentId);
+            }
+            lastRefresh = started;
+        }
+        catch(SQLException ex) {
+            if (DbUtil.UNDEFINED_COLUMN.contains(ex.getSQLState())) {
+                incremental = false;
+                log.warn("[W165] No column {} to refresh the lookup filter of component {} incrementally, relying on change notifications and hourly rebuilds instead", modifiedColumn, componentId);
+            }
+            else {
+                log.warn("[W169] Unable to refresh lookup filter of component {}: ex={}", componentId, ex.getMessage());
+            }
+        }
+        catch(RuntimeException ex) {
+            log.warn("[W169] Unable to refresh lookup filter of component {}: ex={}", componentId, ex.getMessage());
+        }
+    }
+
+    private void build() throws SQLException {
+        long started = System.currentTimeMillis();
+        long count;
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement st = c.prepareStatement(UserQueries.count(null));
+             ResultSet rs = st.executeQuery()) {
+            rs.next();
+            count = rs.getLong(1);
+        }
+        if (incremental && !DbUtil.IDENTIFIER.matcher(modifiedColumn).matches()) {
+            incremental = false;
+        }
+        long capacity = Math.max(MIN_CAPACITY, (long) (count * HEADROOM));
+        Filters built = new Filters(capacity, falsePositiveRate);
+        synchronized (pendingLock) {
+            pending = new ArrayList<>();
+        }
+        try {
+            int added = load(built, UserQueries.FILTER_ALL_USERS, List.of());
+            synchronized (pendingLock) {
+                pending.forEach(user -> built.add(user[0], user[1]));
+                inserted.set(added + pending.size());
+                filters = built;
+                lastBuild = started;
+            }
+        }
+        finally {
+            synchronized (pendingLock) {
+                pending = null;
+            }
+        }
+        log.info("[I191] Lookup filter of component {} built with {} users, {} bytes", componentId, inserted.get(), getMemoryBytes());
+    }
+
+    private int load(Filters target, String sql, List<?> params) throws SQLException {
+        int[] added = { 0 };
+        try (QueryCursor<String> cursor = QueryCursor.open(dataSource, sql, params, fetchSize, rs -> {
+            target.add(rs.getString(1), rs.getString(2));
+            return rs.getString(1);
+        })) {
+            cursor.stream().forEach(username -> added[0]++);
+        }
+        if (target == filters) {
+            inserted.addAndGet(added[0]);
+        }
+        return added[0];
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public boolean isReady() {
+        return filters != null;
+    }
+
+    @Override
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    @Override
+    public long getDefiniteMisses() {
+        return definiteMisses.sum();
+    }
+
+    @Override
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    @Override
+    public double getMissRatio() {
+        long n = checks.sum();
+        return n == 0 ? 0 : (double) definiteMisses.sum() / n;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        Filters current = filters;
+        return current == null ? 0 : current.usernames.getMemoryBytes() + current.emails.getMemoryBytes();
+    }
+
+    @Override
+    public long getCapacity() {
+        Filters current = filters;
+        return current == null ? 0 : current.capacity;
+    }
+
+    @Override
+    public long getInserted() {
+        return inserted.get();
+    }
+
+    @Override
+    public double getConfiguredFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    @Override
+    public void rebuild() {
+        if (refresher != null) {
+            refresher.execute(() -> {
+                synchronized (this) {
+                    try {
+                        build();
+                        lastRefresh = System.currentTimeMillis();
+                    }
+                    catch(SQLException | RuntimeException ex) {
+                        log.warn("[W169] Unable to build lookup filter of component {}: ex={}", componentId, ex.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private static class Filters {
+        private final long capacity;
+        private final BloomFilter usernames;
+        private final BloomFilter emails;
+
+        private Filters(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.usernames = BloomFilter.create(capacity, falsePositiveRate);
+            this.emails = BloomFilter.create(capacity, falsePositiveRate);
+        }
+
+        private void add(String username, String email) {
+            if (username != null) {
+                usernames.add(username);
+            }
+            if (email != null) {
+                emails.add(email);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the filter answering lookups of unknown users without a query.
+ */
+public interface LookupFilterMXBean {
+
+    boolean isReady();
+
+    /**
+     * Lookups checked against the filter.
+     */
+    long getChecks();
+
+    /**
+     * Lookups answered as unknown without a query.
+     */
+    long getDefiniteMisses();
+
+    /**
+     * Lookups the filter let through that found no user.
+     */
+    long getFalsePositives();
+
+    double getMissRatio();
+
+    long getMemoryBytes();
+
+    long getCapacity();
+
+    long getInserted();
+
+    double getConfiguredFalsePositiveRate();
+
+    /**
+     * Rebuilds the filter from the database in the background.
+     */
+    void rebuild();
+}
@@ -0,0 +1,55 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registration of the provider's management beans under the {@code com.ms2sgroup.auth} domain.
+ */
+final class MBeans {
+    private static final Logger log = LoggerFactory.getLogger(MBeans.class);
+
+    private MBeans() {
+    }
+
+    static void register(String type, String componentId, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(type, componentId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        }
+        catch(JMException ex) {
+            log.warn("[W31] Unable to register {} MBean: ex={}", type, ex.getMessage());
+        }
+    }
+
+    static void unregister(String type, String componentId) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(type, componentId);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(JMException ex) {
+            log.warn("[W44] Unable to unregister {} MBean: ex={}", type, ex.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String type, String componentId) throws JMException {
+        String name = "com.ms2sgroup.auth:type=" + type;
+        if (componentId != null) {
+            name += ",component=" + ObjectName.quote(componentId);
+        }
+        return new ObjectName(name);
+    }
+}
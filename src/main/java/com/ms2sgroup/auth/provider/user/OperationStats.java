@@ -0,0 +1,64 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.beans.ConstructorProperties;
+
+import com.ms2sgroup.auth.provider.user.util.LatencyHistogram;
+
+/**
+ * Snapshot of the figures of one measured operation, as exposed over JMX.
+ */
+public class OperationStats {
+
+    private final long count;
+    private final long errors;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({ "count", "errors", "meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis" })
+    public OperationStats(long count, long errors, double meanMillis, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+        this.count = count;
+        this.errors = errors;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    static OperationStats of(LatencyHistogram histogram, long errors) {
+        return new OperationStats(histogram.getCount(), errors, histogram.getMeanMillis(),
+          histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.99),
+          histogram.getPercentileMillis(0.999), histogram.getMaxMillis());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getP999Millis() {
+        return p999Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+}
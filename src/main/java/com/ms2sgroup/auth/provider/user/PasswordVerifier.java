@@ -0,0 +1,167 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ms2sgroup.auth.provider.user.util.PBKDF2SHA256HashingUtil;
+import com.ms2sgroup.auth.provider.user.util.PasswordHash;
+
+/**
+ * Runs PBKDF2 verifications on a dedicated pool sized to the available cores, so a burst of
+ * logins cannot take every Keycloak request thread. Requests beyond the bounded queue, or
+ * that wait longer than the caller's timeout, fail immediately.
+ */
+class PasswordVerifier implements PasswordVerifierMXBean {
+    private static final Logger log = LoggerFactory.getLogger(PasswordVerifier.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int queueCapacity;
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder verificationNanos = new LongAdder();
+    private final LongAccumulator maxVerificationNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param threads number of verifying threads, usually the number of cores
+     * @param queueCapacity verifications allowed to wait for a thread
+     */
+    PasswordVerifier(int threads, int queueCapacity) {
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "atenxia-pbkdf2-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Checks the password against the stored hash.
+     * @param timeoutMillis maximum time to wait for the verification to complete
+     * @return true if the password matches, false if it does not, null if it could not be
+     *   checked because the pool is saturated or the verification timed out or failed
+     */
+    Boolean verify(String password, PasswordHash hash, long timeoutMillis) {
+        byte[] expected = hash.getHashBytes();
+        if (expected == null) {
+            return false;
+        }
+        long submitted = System.nanoTime();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> {
+                long started = System.nanoTime();
+                waitNanos.add(started - submitted);
+                try {
+                    return new PBKDF2SHA256HashingUtil(password, hash.getSalt(), hash.getIterations()).validatePassword(expected);
+                }
+                finally {
+                    long elapsed = System.nanoTime() - started;
+                    verificationNanos.add(elapsed);
+                    maxVerificationNanos.accumulate(elapsed);
+                    verifications.increment();
+                }
+            });
+        }
+        catch(RejectedExecutionException ex) {
+            rejected.increment();
+            log.warn("[W86] Password verification rejected, {} verifications already queued", executor.getQueue().size());
+            return null;
+        }
+
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException ex) {
+            result.cancel(true);
+            timedOut.increment();
+            log.warn("[W97] Password verification timed out after {} ms", timeoutMillis);
+            return null;
+        }
+        catch(InterruptedException ex) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException ex) {
+            log.warn("[W106] Password verification failed: ex={}", ex.getCause().getMessage());
+            return null;
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public long getVerifications() {
+        return verifications.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long count = verifications.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getAverageVerificationMillis() {
+        long count = verifications.sum();
+        return count == 0 ? 0 : verificationNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getMaxVerificationMillis() {
+        return maxVerificationNanos.get() / 1e6;
+    }
+}
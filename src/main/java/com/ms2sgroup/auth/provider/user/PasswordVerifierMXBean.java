@@ -0,0 +1,27 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the PBKDF2 verification pool.
+ */
+public interface PasswordVerifierMXBean {
+
+    int getThreads();
+
+    int getQueueCapacity();
+
+    int getQueueDepth();
+
+    int getActiveCount();
+
+    long getVerifications();
+
+    long getRejected();
+
+    long getTimedOut();
+
+    double getAverageWaitMillis();
+
+    double getAverageVerificationMillis();
+
+    double getMaxVerificationMillis();
+}
@@ -0,0 +1,28 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.Map;
+
+/**
+ * JMX view of the latency and error figures of one provider component.
+ */
+public interface ProviderMetricsMXBean {
+
+    /**
+     * Figures of each provider operation, keyed by operation name.
+     */
+    Map<String, OperationStats> getOperations();
+
+    /**
+     * Time spent waiting for a pooled database connection.
+     */
+    OperationStats getConnectionAcquisition();
+
+    /**
+     * Time spent verifying passwords, including the wait for a verification thread.
+     */
+    OperationStats getPasswordVerification();
+
+    long getRowsMapped();
+
+    void reset();
+}
@@ -0,0 +1,159 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the rows of a query as they are fetched, holding its connection until the stream
+ * is exhausted or closed. On Postgres the fetch size only applies inside a transaction, so
+ * auto-commit is switched off for the lifetime of the cursor.
+ */
+class QueryCursor<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(QueryCursor.class);
+
+    interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    interface CloseAction {
+        /**
+         * @param failed whether reading a row failed because the database was unavailable
+         */
+        void closed(boolean failed);
+    }
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final RowMapper<T> mapper;
+    private CloseAction onClose;
+    private boolean closed;
+    private boolean failed;
+
+    private QueryCursor(Connection connection, PreparedStatement statement, ResultSet resultSet, RowMapper<T> mapper) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Runs the query and returns a cursor positioned before the first row.
+     * @param params positional parameters, bound with {@link PreparedStatement#setObject}
+     */
+    static <T> QueryCursor<T> open(DataSource dataSource, String sql, List<?> params, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        return open(dataSource.getConnection(), sql, params, fetchSize, mapper);
+    }
+
+    /**
+     * Runs the query on a connection the cursor takes ownership of, closing it with the cursor.
+     */
+    static <T> QueryCursor<T> open(Connection c, String sql, List<?> params, int fetchSize, RowMapper<T> mapper) throws SQLException {
+        return open(c, sql, params, fetchSize, 0, mapper);
+    }
+
+    /**
+     * @param queryTimeout seconds the query may run, 0 for no limit
+     */
+    static <T> QueryCursor<T> open(Connection c, String sql, List<?> params, int fetchSize, int queryTimeout, RowMapper<T> mapper) throws SQLException {
+        try {
+            c.setAutoCommit(false);
+            PreparedStatement st = c.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(fetchSize);
+            st.setQueryTimeout(queryTimeout);
+            for (int i = 0; i < params.size(); i++) {
+                st.setObject(i + 1, params.get(i));
+            }
+            return new QueryCursor<>(c, st, st.executeQuery(), mapper);
+        }
+        catch(SQLException | RuntimeException ex) {
+            release(c);
+            throw ex;
+        }
+    }
+
+    /**
+     * Action run once when the cursor is closed, whether by the stream consumer, by reaching
+     * the last row or by an error.
+     */
+    QueryCursor<T> onClose(CloseAction onClose) {
+        this.onClose = onClose;
+        return this;
+    }
+
+    Stream<T> stream() {
+        return StreamSupport.stream(this, false).onClose(this::close);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!resultSet.next()) {
+                close();
+                return false;
+            }
+            action.accept(mapper.map(resultSet));
+            return true;
+        }
+        catch(SQLException ex) {
+            RuntimeException error = DatabaseUnavailableException.of(ex);
+            failed = error instanceof DatabaseUnavailableException;
+            close();
+            throw error;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            resultSet.close();
+            statement.close();
+        }
+        catch(SQLException ex) {
+            log.warn("[W100] Unable to close cursor: ex={}", ex.getMessage());
+        }
+        release(connection);
+        if (onClose != null) {
+            onClose.closed(failed);
+        }
+    }
+
+    private static void release(Connection c) {
+        try {
+            c.rollback();
+            c.setAutoCommit(true);
+        }
+        catch(SQLException ex) {
+            log.warn("[W110] Unable to reset connection: ex={}", ex.getMessage());
+        }
+        finally {
+            try {
+                c.close();
+            }
+            catch(SQLException ex) {
+                log.warn("[W117] Unable to close connection: ex={}", ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ms2sgroup.auth.provider.user.util.ExpiringLruCache;
+import com.zaxxer.hikari.HikariDataSource;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Spreads the reads of one component across its healthy read replicas. Each replica is
+ * checked in the background with the validation query. It joins the rotation once a check
+ * succeeds and leaves it as soon as a check, or a connection attempt by a request, fails.
+ * When no replica is healthy, reads go to the primary.
+ * <p>
+ * Users notified as changed are read from the primary for a while, so a lookup that follows
+ * the change does not cache the old row from a replica that has not applied it yet.
+ */
+class ReplicaRouter implements ReplicaRouterMXBean {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 10;
+    // Well beyond the usual lag of a streaming replica
+    private static final long RECENT_CHANGE_MILLIS = 30_000L;
+    private static final int RECENT_CHANGE_MAX_ENTRIES = 10000;
+
+    private final String componentId;
+    private final String validationQuery;
+    private final int validationTimeout;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+    private final ScheduledExecutorService healthChecker;
+    // Usernames and emails of the users changed in the last RECENT_CHANGE_MILLIS
+    private final ExpiringLruCache<String, Boolean> recentChanges = new ExpiringLruCache<>(RECENT_CHANGE_MILLIS, RECENT_CHANGE_MAX_ENTRIES);
+    private volatile String lastEvent;
+
+    ReplicaRouter(ComponentModel model) {
+        this.componentId = model.getId();
+        this.validationQuery = model.get(CONFIG_KEY_VALIDATION_QUERY);
+        this.validationTimeout = model.get(CONFIG_KEY_POOL_VALIDATION_TIMEOUT, DbUtil.DEFAULT_POOL_VALIDATION_TIMEOUT);
+        String urls = model.get(CONFIG_KEY_REPLICA_JDBC_URLS);
+        if (urls != null) {
+            for (String url : urls.split(",")) {
+                if (!url.isBlank()) {
+                    String poolName = "atenxia-" + componentId + "-replica-" + (replicas.size() + 1);
+                    replicas.add(new Replica(url.trim(), DbUtil.createDataSource(model, url.trim(), poolName)));
+                }
+            }
+        }
+        if (replicas.isEmpty()) {
+            this.healthChecker = null;
+            return;
+        }
+        log.info("[I66] Component {} reads from {} replicas", componentId, replicas.size());
+        int interval = Math.max(1, model.get(CONFIG_KEY_REPLICA_HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL));
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atenxia-replica-check-" + componentId);
+            t.setDaemon(true);
+            return t;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Next healthy replica in turn for a read of the given users by username or email, or
+     * null if the read must go to the primary: no replica is healthy, or one of the users
+     * changed too recently for the replicas to be sure to have the change.
+     */
+    DataSource nextReplica(Collection<String> names) {
+        int size = replicas.size();
+        if (size > 0 && names.stream().noneMatch(name -> name != null && recentChanges.get(name) != null)) {
+            int start = Math.floorMod(next.getAndIncrement(), size);
+            for (int i = 0; i < size; i++) {
+                Replica replica = replicas.get((start + i) % size);
+                if (replica.healthy) {
+                    replica.reads.increment();
+                    return replica.dataSource;
+                }
+            }
+        }
+        primaryReads.increment();
+        return null;
+    }
+
+    /**
+     * Takes a replica out of rotation after a request failed to connect to it. It comes back
+     * once a health check succeeds.
+     */
+    void markDown(DataSource dataSource, SQLException ex) {
+        for (Replica replica : replicas) {
+            if (replica.dataSource == dataSource) {
+                setHealthy(replica, false, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records a user changed on the primary, so it is read from there until the replicas
+     * have caught up.
+     * @param email current email of the user, possibly null
+     */
+    void changed(String username, String email) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        if (username != null) {
+            recentChanges.put(username, Boolean.TRUE);
+        }
+        if (email != null) {
+            recentChanges.put(email, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records that neither a replica nor the primary could be reached.
+     */
+    void markUnavailable(SQLException ex) {
+        unavailable.increment();
+        event("No database of component " + componentId + " is reachable: " + ex.getMessage());
+    }
+
+    @Override
+    public void checkHealth() {
+        for (Replica replica : replicas) {
+            try (Connection c = replica.dataSource.getConnection()) {
+                if (validationQuery != null && !validationQuery.isBlank()) {
+                    try (Statement st = c.createStatement()) {
+                        st.setQueryTimeout(validationTimeout);
+                        st.execute(validationQuery);
+                    }
+                }
+                else if (!c.isValid(validationTimeout)) {
+                    throw new SQLException("Connection is not valid");
+                }
+                setHealthy(replica, true, null);
+            }
+            catch(SQLException | RuntimeException ex) {
+                setHealthy(replica, false, ex.getMessage());
+            }
+        }
+    }
+
+    private void setHealthy(Replica replica, boolean healthy, String reason) {
+        synchronized (replica) {
+            boolean firstCheck = !replica.checked;
+            replica.checked = true;
+            if (replica.healthy == healthy && !firstCheck) {
+                return;
+            }
+            replica.healthy = healthy;
+        }
+        if (healthy) {
+            log.info("[I143] Replica {} of component {} is in rotation", replica.url, componentId);
+            event("Replica " + replica.url + " is in rotation");
+        }
+        else {
+            failovers.increment();
+            log.warn("[W148] Replica {} of component {} is out of rotation: ex={}", replica.url, componentId, reason);
+            event("Replica " + replica.url + " is out of rotation: " + reason);
+        }
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public Map<String, Boolean> getReplicaHealth() {
+        Map<String, Boolean> health = new LinkedHashMap<>();
+        replicas.forEach(replica -> health.put(replica.url, replica.healthy));
+        return health;
+    }
+
+    @Override
+    public Map<String, Long> getReplicaReads() {
+        Map<String, Long> reads = new LinkedHashMap<>();
+        replicas.forEach(replica -> reads.put(replica.url, replica.reads.sum()));
+        return reads;
+    }
+
+    @Override
+    public long getPrimaryReads() {
+        return primaryReads.sum();
+    }
+
+    @Override
+    public long getFailovers() {
+        return failovers.sum();
+    }
+
+    @Override
+    public long getUnavailable() {
+        return unavailable.sum();
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        replicas.forEach(replica -> replica.dataSource.close());
+    }
+
+    private static class Replica {
+        private final String url;
+        private final HikariDataSource dataSource;
+        private final LongAdder reads = new LongAdder();
+        // Out of rotation until the first check succeeds, so reads never wait on a replica
+        // that was down from the start
+        private volatile boolean healthy;
+        private boolean checked;
+
+        private Replica(String url, HikariDataSource dataSource) {
+            this.url = url;
+            this.dataSource = dataSource;
+        }
+    }
+}
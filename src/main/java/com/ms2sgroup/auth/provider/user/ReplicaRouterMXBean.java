@@ -0,0 +1,41 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.Map;
+
+/**
+ * JMX view of the read replica routing of one provider component.
+ */
+public interface ReplicaRouterMXBean {
+
+    /**
+     * Whether each replica, by JDBC URL, currently receives reads.
+     */
+    Map<String, Boolean> getReplicaHealth();
+
+    /**
+     * Connections taken from each replica, by JDBC URL.
+     */
+    Map<String, Long> getReplicaReads();
+
+    /**
+     * Connections taken from the primary because no replica was healthy or configured.
+     */
+    long getPrimaryReads();
+
+    /**
+     * Times a replica was taken out of rotation.
+     */
+    long getFailovers();
+
+    /**
+     * Times a connection could be obtained from no database at all.
+     */
+    long getUnavailable();
+
+    String getLastEvent();
+
+    /**
+     * Runs the health check of every replica now.
+     */
+    void checkHealth();
+}
@@ -0,0 +1,81 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Users already resolved by one provider instance, and so within one Keycloak session, by
+ * id, username and email. Keycloak looks the same user up several times while serving a
+ * single request; later lookups get the adapter built by the first one, with its stored
+ * password and federated attributes already read. Adapters report changes of their username
+ * or email so they are found under the new values only.
+ */
+class SessionUsers {
+
+    private final Map<String, CustomUserAdapter> byId = new HashMap<>();
+    private final Map<String, CustomUserAdapter> byUsername = new HashMap<>();
+    private final Map<String, CustomUserAdapter> byEmail = new HashMap<>();
+
+    CustomUserAdapter getById(String id) {
+        return byId.get(id);
+    }
+
+    CustomUserAdapter getByUsername(String username) {
+        return byUsername.get(username);
+    }
+
+    CustomUserAdapter getByEmail(String email) {
+        return email != null ? byEmail.get(email) : null;
+    }
+
+    /**
+     * Keeps a resolved user for the rest of the session. A user already resolved under
+     * another key keeps its first adapter, along with the changes made to it.
+     * @return the adapter kept for the user, or null if the given one is null
+     */
+    CustomUserAdapter put(CustomUserAdapter adapter) {
+        if (adapter == null) {
+            return null;
+        }
+        CustomUserAdapter known = byUsername.putIfAbsent(adapter.getUsername(), adapter);
+        if (known != null) {
+            return known;
+        }
+        byId.put(adapter.getId(), adapter);
+        if (adapter.getEmail() != null) {
+            byEmail.put(adapter.getEmail(), adapter);
+        }
+        return adapter;
+    }
+
+    /**
+     * Called by an adapter after its username changed. Its id, fixed on first use, is kept.
+     */
+    void usernameChanged(CustomUserAdapter adapter, String previous) {
+        if (byUsername.get(previous) == adapter) {
+            byUsername.remove(previous);
+            byUsername.put(adapter.getUsername(), adapter);
+        }
+    }
+
+    /**
+     * Called by an adapter after its email changed.
+     */
+    void emailChanged(CustomUserAdapter adapter, String previous) {
+        if (byUsername.get(adapter.getUsername()) != adapter) {
+            return;
+        }
+        if (previous != null && byEmail.get(previous) == adapter) {
+            byEmail.remove(previous);
+        }
+        if (adapter.getEmail() != null) {
+            byEmail.put(adapter.getEmail(), adapter);
+        }
+    }
+
+    void clear() {
+        byId.clear();
+        byUsername.clear();
+        byEmail.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ms2sgroup.auth.provider.user.util.ExpiringLruCache;
+
+/**
+ * Cross-session cache of {@link CustomUser} rows for one provider component, indexed by
+ * username and by email. Only profile data is held here; password hashes never are.
+ * Callers always receive a copy, so adapters can modify the user they are given.
+ */
+class UserCache implements UserCacheMXBean {
+
+    private final boolean enabled;
+    private final ExpiringLruCache<String, CustomUser> byUsername;
+    private final ExpiringLruCache<String, String> usernameByEmail;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    /**
+     * @param ttlSeconds time an entry stays valid, 0 disables the cache
+     * @param staleSeconds further time an expired entry may be served while the database
+     *   is unreachable, 0 disables it
+     * @param maxEntries
+     */
+    UserCache(int ttlSeconds, int staleSeconds, int maxEntries) {
+        this.enabled = ttlSeconds > 0 && maxEntries > 0;
+        this.byUsername = new ExpiringLruCache<>(ttlSeconds * 1000L, staleSeconds * 1000L, maxEntries);
+        this.usernameByEmail = new ExpiringLruCache<>(ttlSeconds * 1000L, staleSeconds * 1000L, maxEntries);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    CustomUser getByUsername(String username) {
+        if (!enabled || username == null) {
+            return null;
+        }
+        return count(byUsername.get(username));
+    }
+
+    CustomUser getByEmail(String email) {
+        if (!enabled || email == null) {
+            return null;
+        }
+        String username = usernameByEmail.get(email);
+        CustomUser user = username != null ? byUsername.get(username) : null;
+        // The email may have moved to another user since the index entry was written
+        if (user != null && !email.equals(user.getEmail())) {
+            user = null;
+        }
+        return count(user);
+    }
+
+    /**
+     * Last known version of the user, even if expired, for when the database cannot be reached.
+     */
+    CustomUser getStaleByUsername(String username) {
+        if (!enabled || username == null) {
+            return null;
+        }
+        return countStale(byUsername.getStale(username));
+    }
+
+    CustomUser getStaleByEmail(String email) {
+        if (!enabled || email == null) {
+            return null;
+        }
+        String username = usernameByEmail.getStale(email);
+        CustomUser user = username != null ? byUsername.getStale(username) : null;
+        if (user != null && !email.equals(user.getEmail())) {
+            user = null;
+        }
+        return countStale(user);
+    }
+
+    private CustomUser countStale(CustomUser user) {
+        if (user == null) {
+            return null;
+        }
+        staleHits.increment();
+        return new CustomUser(user);
+    }
+
+    void put(CustomUser user) {
+        if (!enabled) {
+            return;
+        }
+        byUsername.put(user.getUsername(), new CustomUser(user));
+        if (user.getEmail() != null) {
+            usernameByEmail.put(user.getEmail(), user.getUsername());
+        }
+    }
+
+    private CustomUser count(CustomUser user) {
+        if (user == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new CustomUser(user);
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return byUsername.size();
+    }
+
+    @Override
+    public void invalidateUser(String username) {
+        CustomUser removed = byUsername.remove(username);
+        if (removed != null && removed.getEmail() != null) {
+            usernameByEmail.remove(removed.getEmail());
+        }
+    }
+
+    @Override
+    public void flush() {
+        byUsername.clear();
+        usernameByEmail.clear();
+    }
+}
@@ -0,0 +1,22 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the user lookup cache of one provider component.
+ */
+public interface UserCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * Users served after expiry because the database could not be reached.
+     */
+    long getStaleHits();
+
+    int getSize();
+
+    void invalidateUser(String username);
+
+    void flush();
+}
@@ -0,0 +1,702 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.keycloak.component.ComponentModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The active users of one component held in memory, without their passwords, so lookups,
+ * searches and counts need no query. Users are packed into a few arrays rather than held as
+ * objects: the UTF-8 bytes of every username and email in one byte array, in username order,
+ * the role flags in one byte per user and the order by email in an int array. With typical
+ * names this takes about 50 bytes per user, some 20 MB for 400k users.
+ * <p>
+ * Both orders compare ASCII letters regardless of case, so a prefix search reads one range of
+ * each whether searches are case sensitive or not. In case-insensitive mode, names with other
+ * characters are not ordered by their lower case, and searches scan every user once one exists.
+ * <p>
+ * The directory is loaded in the background by streaming {@code atenxia_user}, then refreshed
+ * with the users modified since the previous refresh, using the sync modification column, and
+ * with the users named by change notifications. Without the modification column, it relies on
+ * the notifications alone between hourly full loads. Every change publishes a new copy of the
+ * arrays, so readers never lock. Users created in atenxia_user are missing until one of those
+ * reaches them: the provider looks names the directory does not hold up in the database,
+ * which reloads them, but searches and counts miss them meanwhile. Until the first load
+ * completes the provider queries the database.
+ */
+class UserDirectory implements UserDirectoryMXBean {
+    private static final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+
+    public static final int DEFAULT_REFRESH_INTERVAL = 30;
+    // Users renamed without a change notification keep their old name until a full load, and
+    // without the modification column every change missed by the notifications does
+    private static final long RELOAD_INTERVAL_MILLIS = 3_600_000L;
+    private static final int ROLE_FLAGS = CustomUser.CENTER_ADMIN | CustomUser.PARENT | CustomUser.PROFESSIONAL
+      | CustomUser.TEACHER | CustomUser.ADMIN;
+    // Bits of the flags byte next to the role flags: a user without email, a user to drop
+    private static final int NO_EMAIL = 1 << 7;
+    private static final int REMOVED = 1 << 6;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String componentId;
+    private final DataSource dataSource;
+    private final int fetchSize;
+    private final boolean enabled;
+    private final String modifiedColumn;
+    private final ScheduledExecutorService refresher;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder searches = new LongAdder();
+    private volatile Users users;
+    private volatile String lastEvent;
+    private long lastRefresh;
+    private long lastLoad;
+    private boolean incremental = true;
+
+    UserDirectory(ComponentModel model, DataSource dataSource) {
+        this.componentId = model.getId();
+        this.dataSource = dataSource;
+        this.fetchSize = model.get(CONFIG_KEY_FETCH_SIZE, ComponentState.DEFAULT_FETCH_SIZE);
+        this.enabled = model.get(CONFIG_KEY_DIRECTORY, false);
+        this.modifiedColumn = model.get(CONFIG_KEY_SYNC_MODIFIED_COLUMN, UserSynchronizer.DEFAULT_MODIFIED_COLUMN);
+        if (!enabled) {
+            this.refresher = null;
+            return;
+        }
+        int interval = Math.max(1, model.get(CONFIG_KEY_DIRECTORY_REFRESH, DEFAULT_REFRESH_INTERVAL));
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "atenxia-user-directory-" + componentId);
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(() -> refresh(false), 0, interval, TimeUnit.SECONDS);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Active user with this username, or null if there is none. Only valid once ready.
+     */
+    CustomUser getByUsername(String username) {
+        lookups.increment();
+        Users current = users;
+        int i = username != null ? current.find(username.getBytes(UTF_8), false) : -1;
+        return i >= 0 ? current.user(i) : null;
+    }
+
+    /**
+     * Active user with this email, or null if there is none. Only valid once ready.
+     */
+    CustomUser getByEmail(String email) {
+        lookups.increment();
+        Users current = users;
+        int i = email != null ? current.find(email.getBytes(UTF_8), true) : -1;
+        return i >= 0 ? current.user(i) : null;
+    }
+
+    /**
+     * Users matching the query, in username order. Only valid once ready.
+     * @param max users returned at most, -1 for all
+     */
+    Stream<CustomUser> search(UserSearchQuery query, int first, int max) {
+        searches.increment();
+        Users current = users;
+        Row row = new Row(current);
+        IntStream matches = candidates(current, query).filter(i -> query.matches(row.at(i))).skip(first);
+        return (max >= 0 ? matches.limit(max) : matches).mapToObj(current::user);
+    }
+
+    /**
+     * Number of users matching the query. Only valid once ready.
+     */
+    int count(UserSearchQuery query) {
+        searches.increment();
+        Users current = users;
+        Row row = new Row(current);
+        return (int) candidates(current, query).filter(i -> query.matches(row.at(i))).count();
+    }
+
+    /**
+     * Number of active users. Only valid once ready.
+     */
+    int size() {
+        return users.size;
+    }
+
+    /**
+     * Users that may match the query, in username order: those whose username or email starts
+     * with the literal start of its search terms, or every user.
+     */
+    private static IntStream candidates(Users current, UserSearchQuery query) {
+        String prefix = query.getSearchPrefix();
+        if (prefix == null || query.isCaseInsensitive() && !current.ascii) {
+            return IntStream.range(0, current.size);
+        }
+        byte[] key = prefix.getBytes(UTF_8);
+        // Users are stored in username order, so the username matches are one range of indexes
+        int from = current.lowerBound(key, false);
+        int to = current.prefixEnd(key, false);
+        int[] others = IntStream.range(current.lowerBound(key, true), current.prefixEnd(key, true))
+          .map(p -> current.emailOrder[p])
+          .filter(i -> i < from || i >= to)
+          .sorted()
+          .toArray();
+        int split = Arrays.binarySearch(others, from);
+        if (split < 0) {
+            split = -split - 1;
+        }
+        return IntStream.concat(IntStream.concat(Arrays.stream(others, 0, split), IntStream.range(from, to)),
+          Arrays.stream(others, split, others.length));
+    }
+
+    /**
+     * Reloads a user changed in the database in the background, along with any other user
+     * changed meanwhile.
+     */
+    void reload(String username) {
+        if (refresher != null && username != null && pending.add(username)) {
+            refresher.execute(this::reloadPending);
+        }
+    }
+
+    /**
+     * Applies the users modified since the last refresh in the background, for when change
+     * notifications may have been missed.
+     */
+    void refreshNow() {
+        if (refresher != null) {
+            refresher.execute(() -> refresh(true));
+        }
+    }
+
+    /**
+     * @param resync whether notifications may have been missed, which without the modification
+     *   column takes a full load to make up for
+     */
+    private synchronized void refresh(boolean resync) {
+        try {
+            long started = System.currentTimeMillis();
+            if (users == null || started - lastLoad >= RELOAD_INTERVAL_MILLIS || (!incremental && resync)) {
+                load();
+            }
+            else if (incremental) {
+                long since = lastRefresh - DbUtil.CLOCK_SKEW_MILLIS;
+                Map<String, CustomUser> changes = new HashMap<>();
+                try (QueryCursor<String> cursor = QueryCursor.open(dataSource, UserQueries.syncChangedUsers(modifiedColumn),
+                  List.of(new Timestamp(since)), fetchSize, rs -> readChange(rs, changes))) {
+                    cursor.stream().forEach(username -> { });
+                }
+                apply(changes);
+                log.debug("[D217] Applied {} changed users to the directory of component {}", changes.size(), componentId);
+            }
+            lastRefresh = started;
+        }
+        catch(SQLException ex) {
+            if (DbUtil.UNDEFINED_COLUMN.contains(ex.getSQLState())) {
+                incremental = false;
+                log.warn("[W224] No column {} to refresh the directory of component {} incrementally, relying on change notifications and hourly reloads instead", modifiedColumn, componentId);
+            }
+            else {
+                log.warn("[W227] Unable to refresh directory of component {}: ex={}", componentId, ex.getMessage());
+            }
+        }
+        catch(RuntimeException ex) {
+            log.warn("[W231] Unable to refresh directory of component {}: ex={}", componentId, ex.getMessage());
+        }
+    }
+
+    private void load() throws SQLException {
+        long started = System.currentTimeMillis();
+        if (incremental && !DbUtil.IDENTIFIER.matcher(modifiedColumn).matches()) {
+            incremental = false;
+        }
+        Users loaded = new Users(1024, 64 * 1024);
+        try (QueryCursor<CustomUser> cursor = QueryCursor.open(dataSource, UserQueries.DIRECTORY_ALL_USERS, List.of(), fetchSize,
+          CustomUserStorageProvider::mapRow)) {
+            cursor.stream().forEach(user -> loaded.add(user, 0));
+        }
+        Users sorted = loaded.sorted();
+        users = sorted;
+        lastLoad = started;
+        long millis = System.currentTimeMillis() - started;
+        log.info("[I249] Directory of component {} loaded with {} users, {} bytes, in {} ms", componentId, sorted.size, sorted.memoryBytes(), millis);
+        event("Loaded " + sorted.size + " users, " + sorted.memoryBytes() + " bytes, in " + millis + " ms");
+    }
+
+    private synchronized void reloadPending() {
+        List<String> usernames = new ArrayList<>();
+        for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+            usernames.add(it.next());
+            it.remove();
+        }
+        // Without users yet, the load in progress or the next one reads the changes
+        if (usernames.isEmpty() || users == null) {
+            return;
+        }
+        Map<String, CustomUser> changes = new HashMap<>();
+        usernames.forEach(username -> changes.put(username, null));
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement st = c.prepareStatement(UserQueries.DIRECTORY_USERS_BY_USERNAMES)) {
+            Array array = c.createArrayOf("varchar", usernames.toArray());
+            try {
+                st.setArray(1, array);
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        readChange(rs, changes);
+                    }
+                }
+            }
+            finally {
+                array.free();
+            }
+            apply(changes);
+        }
+        catch(SQLException | RuntimeException ex) {
+            log.warn("[W282] Unable to reload {} users into the directory of component {}: ex={}", usernames.size(), componentId, ex.getMessage());
+        }
+    }
+
+    /**
+     * Records the user of the current row, or its removal if it is no longer active.
+     */
+    private static String readChange(ResultSet rs, Map<String, CustomUser> changes) throws SQLException {
+        CustomUser user = CustomUserStorageProvider.mapRow(rs);
+        changes.put(user.getUsername(), rs.getBoolean("is_active") ? user : null);
+        return user.getUsername();
+    }
+
+    /**
+     * Publishes a copy of the users with the changes applied, unless none of them differs from
+     * the user already held, as with users seen again within the clock skew allowance.
+     * @param changes users by username, null for users to drop
+     */
+    private void apply(Map<String, CustomUser> changes) {
+        Users current = users;
+        changes.entrySet().removeIf(change -> current.holds(change.getKey(), change.getValue()));
+        if (changes.isEmpty()) {
+            return;
+        }
+        Users changed = new Users(changes.size(), 64 * changes.size());
+        changes.forEach((username, user) -> changed.add(user != null ? user : new CustomUser(username, null, 0), user != null ? 0 : REMOVED));
+        users = current.merge(changed);
+        event("Applied " + changes.size() + " changed users");
+    }
+
+    private void event(String description) {
+        lastEvent = Instant.now() + " " + description;
+    }
+
+    @Override
+    public boolean isReady() {
+        return users != null;
+    }
+
+    @Override
+    public int getUsers() {
+        Users current = users;
+        return current == null ? 0 : current.size;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        Users current = users;
+        return current == null ? 0 : current.memoryBytes();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public String getLastEvent() {
+        return lastEvent;
+    }
+
+    @Override
+    public void rebuild() {
+        if (refresher != null) {
+            refresher.execute(() -> {
+                synchronized (this) {
+                    try {
+                        load();
+                        lastRefresh = lastLoad;
+                    }
+                    catch(SQLException | RuntimeException ex) {
+                        log.warn("[W358] Unable to load directory of component {}: ex={}", componentId, ex.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares names by their UTF-8 bytes, ASCII letters regardless of case.
+     */
+    private static int compareFolded(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo) {
+        int n = Math.min(aTo - aFrom, bTo - bFrom);
+        for (int k = 0; k < n; k++) {
+            int c = fold(a[aFrom + k]) - fold(b[bFrom + k]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (aTo - aFrom) - (bTo - bFrom);
+    }
+
+    private static int fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    /**
+     * Users packed into arrays. An instance is filled by the refresh thread, then published
+     * and never modified.
+     */
+    private static final class Users {
+        private byte[] data;
+        // Start of the username and of the email of each user, then the end of the last email
+        private int[] starts;
+        private byte[] flags;
+        // Users with an email, in email order
+        private int[] emailOrder = new int[0];
+        private int size;
+        private int length;
+        private boolean ascii = true;
+
+        private Users(int users, int bytes) {
+            this.data = new byte[Math.max(16, bytes)];
+            this.flags = new byte[Math.max(16, users)];
+            this.starts = new int[2 * flags.length + 1];
+        }
+
+        private int from(int i, boolean email) {
+            return starts[2 * i + (email ? 1 : 0)];
+        }
+
+        private int to(int i, boolean email) {
+            return starts[2 * i + (email ? 2 : 1)];
+        }
+
+        private boolean hasEmail(int i) {
+            return (flags[i] & NO_EMAIL) == 0;
+        }
+
+        private CustomUser user(int i) {
+            String username = new String(data, from(i, false), to(i, false) - from(i, false), UTF_8);
+            String email = hasEmail(i) ? new String(data, from(i, true), to(i, true) - from(i, true), UTF_8) : null;
+            return new CustomUser(username, email, flags[i] & ROLE_FLAGS);
+        }
+
+        private void add(CustomUser user, int extraFlags) {
+            if (user.getUsername() == null) {
+                return;
+            }
+            byte[] username = user.getUsername().getBytes(UTF_8);
+            byte[] email = user.getEmail() != null ? user.getEmail().getBytes(UTF_8) : EMPTY;
+            int userFlags = user.getFlags() & ROLE_FLAGS | extraFlags | (user.getEmail() == null ? NO_EMAIL : 0);
+            append(username, 0, username.length, email, 0, email.length, userFlags);
+        }
+
+        private void copy(Users source, int i) {
+            append(source.data, source.from(i, false), source.to(i, false), source.data, source.from(i, true), source.to(i, true), source.flags[i]);
+        }
+
+        private void append(byte[] username, int usernameFrom, int usernameTo, byte[] email, int emailFrom, int emailTo, int userFlags) {
+            int start = length;
+            int end = length + (usernameTo - usernameFrom) + (emailTo - emailFrom);
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, data.length + (data.length >> 1)));
+            }
+            if (size == flags.length) {
+                flags = Arrays.copyOf(flags, size + (size >> 1));
+                starts = Arrays.copyOf(starts, 2 * flags.length + 1);
+            }
+            starts[2 * size] = length;
+            System.arraycopy(username, usernameFrom, data, length, usernameTo - usernameFrom);
+            length += usernameTo - usernameFrom;
+            starts[2 * size + 1] = length;
+            System.arraycopy(email, emailFrom, data, length, emailTo - emailFrom);
+            length = end;
+            starts[2 * size + 2] = length;
+            flags[size++] = (byte) userFlags;
+            for (int k = start; k < end && ascii; k++) {
+                ascii = data[k] >= 0;
+            }
+        }
+
+        private Users trim(int[] emailOrder) {
+            data = Arrays.copyOf(data, length);
+            starts = Arrays.copyOf(starts, 2 * size + 1);
+            flags = Arrays.copyOf(flags, size);
+            this.emailOrder = emailOrder;
+            return this;
+        }
+
+        /**
+         * Orders names ignoring ASCII case first, then by their exact bytes.
+         */
+        private int compare(int i, Users other, int j, boolean email) {
+            int c = compareFolded(data, from(i, email), to(i, email), other.data, other.from(j, email), other.to(j, email));
+            return c != 0 ? c : Arrays.compareUnsigned(data, from(i, email), to(i, email), other.data, other.from(j, email), other.to(j, email));
+        }
+
+        /**
+         * Indexes of the users, or of those with an email, sorted by username or email.
+         */
+        private int[] order(boolean email) {
+            return IntStream.range(0, size)
+              .filter(i -> !email || hasEmail(i))
+              .boxed()
+              .sorted((i, j) -> compare(i, this, j, email))
+              .mapToInt(Integer::intValue)
+              .toArray();
+        }
+
+        /**
+         * Copy of the users in username order. Usernames are unique in atenxia_user; of
+         * duplicates, the first is kept.
+         */
+        private Users sorted() {
+            int[] order = order(false);
+            Users sorted = new Users(size, length);
+            for (int k = 0; k < order.length; k++) {
+                if (k == 0 || compare(order[k - 1], this, order[k], false) != 0) {
+                    sorted.copy(this, order[k]);
+                }
+            }
+            return sorted.trim(sorted.order(true));
+        }
+
+        /**
+         * Copy of the users where each changed user replaces or adds the user of the same name,
+         * or drops it if marked {@link #REMOVED}. The orders of the unchanged users are kept,
+         * so only the changed users are sorted.
+         */
+        private Users merge(Users changes) {
+            int[] order = changes.order(false);
+            Users merged = new Users(size + order.length, length + changes.length);
+            // New index of each user, or -1 if changed
+            int[] moved = new int[size];
+            int[] added = new int[order.length];
+            int addedCount = 0;
+            int i = 0;
+            int k = 0;
+            while (i < size || k < order.length) {
+                int c = i == size ? 1 : k == order.length ? -1 : compare(i, changes, order[k], false);
+                if (c < 0) {
+                    moved[i] = merged.size;
+                    merged.copy(this, i++);
+                    continue;
+                }
+                if (c == 0) {
+                    moved[i++] = -1;
+                }
+                int j = order[k++];
+                if ((changes.flags[j] & REMOVED) == 0) {
+                    if (changes.hasEmail(j)) {
+                        added[addedCount++] = merged.size;
+                    }
+                    merged.copy(changes, j);
+                }
+            }
+            int[] addedByEmail = Arrays.stream(added, 0, addedCount)
+              .boxed()
+              .sorted((a, b) -> merged.compare(a, merged, b, true))
+              .mapToInt(Integer::intValue)
+              .toArray();
+            int[] byEmail = new int[emailOrder.length + addedCount];
+            int n = 0;
+            int p = 0;
+            int q = 0;
+            while (p < emailOrder.length || q < addedByEmail.length) {
+                if (p < emailOrder.length && moved[emailOrder[p]] < 0) {
+                    p++;
+                }
+                else if (q == addedByEmail.length
+                  || p < emailOrder.length && merged.compare(moved[emailOrder[p]], merged, addedByEmail[q], true) <= 0) {
+                    byEmail[n++] = moved[emailOrder[p++]];
+                }
+                else {
+                    byEmail[n++] = addedByEmail[q++];
+                }
+            }
+            return merged.trim(Arrays.copyOf(byEmail, n));
+        }
+
+        private int positions(boolean email) {
+            return email ? emailOrder.length : size;
+        }
+
+        private int at(int position, boolean email) {
+            return email ? emailOrder[position] : position;
+        }
+
+        /**
+         * First position, in username or email order, whose name is not below the key when
+         * ignoring ASCII case.
+         */
+        private int lowerBound(byte[] key, boolean email) {
+            int low = 0;
+            int high = positions(email);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int i = at(mid, email);
+                if (compareFolded(data, from(i, email), to(i, email), key, 0, key.length) < 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Index of the user with exactly this username or email, or -1.
+         */
+        private int find(byte[] key, boolean email) {
+            for (int p = lowerBound(key, email); p < positions(email); p++) {
+                int i = at(p, email);
+                if (compareFolded(data, from(i, email), to(i, email), key, 0, key.length) != 0) {
+                    break;
+                }
+                if (Arrays.equals(data, from(i, email), to(i, email), key, 0, key.length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Whether the user is held as given, or not held if null.
+         */
+        private boolean holds(String username, CustomUser user) {
+            int i = username != null ? find(username.getBytes(UTF_8), false) : -1;
+            if (user == null || i < 0) {
+                return user == null && i < 0;
+            }
+            if ((flags[i] & ROLE_FLAGS) != (user.getFlags() & ROLE_FLAGS) || hasEmail(i) != (user.getEmail() != null)) {
+                return false;
+            }
+            byte[] email = user.getEmail() != null ? user.getEmail().getBytes(UTF_8) : EMPTY;
+            return Arrays.equals(data, from(i, true), to(i, true), email, 0, email.length);
+        }
+
+        /**
+         * Position, in username or email order, past the last name starting with the key when
+         * ignoring ASCII case.
+         */
+        private int prefixEnd(byte[] key, boolean email) {
+            int low = 0;
+            int high = positions(email);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int i = at(mid, email);
+                int compared = Math.min(to(i, email) - from(i, email), key.length);
+                if (compareFolded(data, from(i, email), from(i, email) + compared, key, 0, key.length) <= 0) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private long memoryBytes() {
+            return arrayBytes(data.length) + arrayBytes(4L * starts.length) + arrayBytes(flags.length) + arrayBytes(4L * emailOrder.length);
+        }
+
+        private static long arrayBytes(long bytes) {
+            return (16 + bytes + 7) & ~7L;
+        }
+    }
+
+    /**
+     * A user of the directory as seen by a {@link UserSearchQuery}, decoding each name only
+     * if a condition reads it.
+     */
+    private static final class Row implements UserSearchQuery.Row {
+        private final Users users;
+        private int index;
+        private String username;
+        private String email;
+        private boolean emailRead;
+
+        private Row(Users users) {
+            this.users = users;
+        }
+
+        private Row at(int i) {
+            index = i;
+            username = null;
+            email = null;
+            emailRead = false;
+            return this;
+        }
+
+        @Override
+        public String getUsername() {
+            if (username == null) {
+                username = new String(users.data, users.from(index, false), users.to(index, false) - users.from(index, false), UTF_8);
+            }
+            return username;
+        }
+
+        @Override
+        public String getEmail() {
+            if (!emailRead) {
+                email = users.hasEmail(index)
+                  ? new String(users.data, users.from(index, true), users.to(index, true) - users.from(index, true), UTF_8)
+                  : null;
+                emailRead = true;
+            }
+            return email;
+        }
+
+        @Override
+        public int getFlags() {
+            return users.flags[index] & ROLE_FLAGS;
+        }
+    }
+}
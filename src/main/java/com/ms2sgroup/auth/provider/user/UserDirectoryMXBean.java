@@ -0,0 +1,33 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * JMX view of the in-memory copy of the users of one provider component.
+ */
+public interface UserDirectoryMXBean {
+
+    boolean isReady();
+
+    int getUsers();
+
+    /**
+     * Heap taken by the users, computed from the sizes of the arrays holding them.
+     */
+    long getMemoryBytes();
+
+    /**
+     * Lookups by username or email answered from memory.
+     */
+    long getLookups();
+
+    /**
+     * Searches and counts answered from memory.
+     */
+    long getSearches();
+
+    String getLastEvent();
+
+    /**
+     * Reloads every user from the database in the background.
+     */
+    void rebuild();
+}
@@ -0,0 +1,132 @@
+package com.ms2sgroup.auth.provider.user;
+
+/**
+ * SQL run against {@code atenxia_user}, one entry per provider operation. Statements are
+ * fixed strings so the driver can reuse their server-side prepared form across calls on the
+ * same connection (see the {@code prepareThreshold} setting).
+ */
+final class UserQueries {
+
+    /**
+     * Columns read by {@link CustomUserStorageProvider#mapRow}, by position: keep the order.
+     */
+    static final String USER_COLUMNS = "username, email, is_center_admin, is_parent, is_professional, is_teacher, is_staff";
+
+    static final String ACTIVE = "is_active=true";
+
+    static final String USER_BY_USERNAME =
+      "select " + USER_COLUMNS + ", password from atenxia_user where " + ACTIVE + " and username = ?";
+
+    static final String USER_BY_EMAIL =
+      "select " + USER_COLUMNS + ", password from atenxia_user where " + ACTIVE + " and email = ?";
+
+    static final String USERS_BY_USERNAMES =
+      "select " + USER_COLUMNS + " from atenxia_user where " + ACTIVE + " and username = ANY(?)";
+
+    static final String PASSWORD_BY_USERNAME =
+      "select password from atenxia_user where " + ACTIVE + " and username = ?";
+
+    static final String ESTIMATE_COUNT =
+      "explain select 1 from atenxia_user where " + ACTIVE;
+
+    static final String SYNC_ALL_USERS =
+      "select " + USER_COLUMNS + ", is_active from atenxia_user where " + ACTIVE;
+
+    static final String ACTIVE_USERNAMES =
+      "select username from atenxia_user where " + ACTIVE + " and username = ANY(?)";
+
+    static final String FILTER_ALL_USERS =
+      "select username, email from atenxia_user where " + ACTIVE;
+
+    static final String DIRECTORY_ALL_USERS =
+      "select " + USER_COLUMNS + " from atenxia_user where " + ACTIVE;
+
+    static final String DIRECTORY_USERS_BY_USERNAMES =
+      "select " + USER_COLUMNS + ", is_active from atenxia_user where username = ANY(?)";
+
+    private UserQueries() {
+    }
+
+    /**
+     * Count of active users, optionally restricted by a {@link UserSearchQuery} predicate.
+     */
+    static String count(String predicate) {
+        String sql = "select count(*) from atenxia_user where " + ACTIVE;
+        return predicate != null ? sql + " and " + predicate : sql;
+    }
+
+    /**
+     * Page of active users in username order.
+     * @param predicate {@link UserSearchQuery} predicate, or null for all users
+     * @param keyset whether to seek past a username bound as the next parameter
+     * @param limit whether a row limit is bound as the next parameter
+     * @param offset whether a row offset is bound as the last parameter
+     */
+    static String search(String predicate, boolean keyset, boolean limit, boolean offset) {
+        StringBuilder sql = new StringBuilder("select ").append(USER_COLUMNS).append(" from atenxia_user where ").append(ACTIVE);
+        if (predicate != null) {
+            sql.append(" and ").append(predicate);
+        }
+        if (keyset) {
+            sql.append(" and username > ?");
+        }
+        sql.append(" order by username");
+        if (limit) {
+            sql.append(" limit ?");
+        }
+        if (offset) {
+            sql.append(" offset ?");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Active users in the given order, limited to a row count bound as the only parameter.
+     * @param order already validated order by list
+     */
+    static String warmup(String order) {
+        return "select " + USER_COLUMNS + " from atenxia_user where " + ACTIVE + " order by " + order + " limit ?";
+    }
+
+    /**
+     * Active users among those with the most recent successful logins in the login table,
+     * limited to a row count bound as the only parameter.
+     * @param loginTable already validated table name
+     */
+    static String warmupByLastLogin(String loginTable) {
+        return "select " + USER_COLUMNS + " from atenxia_user where " + ACTIVE + " and username in"
+          + " (select username from " + loginTable + " where last_login is not null order by last_login desc limit ?)";
+    }
+
+    /**
+     * Adds the login outcomes of one user to the login table. Binds the username, the last
+     * successful login or null, the failed attempts since then, and the last failed login or
+     * null. A successful login resets the failed attempts stored before it.
+     * @param table already validated table name
+     */
+    static String upsertLogin(String table) {
+        return "insert into " + table + " as l (username, last_login, failed_attempts, last_failed_login) values (?, ?, ?, ?)"
+          + " on conflict (username) do update set"
+          + " last_login = greatest(l.last_login, excluded.last_login),"
+          + " failed_attempts = case when excluded.last_login is null then l.failed_attempts + excluded.failed_attempts"
+          + " else excluded.failed_attempts end,"
+          + " last_failed_login = greatest(l.last_failed_login, excluded.last_failed_login)";
+    }
+
+    /**
+     * Usernames and emails of active users modified after a timestamp bound as the only
+     * parameter.
+     * @param modifiedColumn already validated column name
+     */
+    static String filterChangedUsers(String modifiedColumn) {
+        return "select username, email from atenxia_user where " + ACTIVE + " and " + modifiedColumn + " > ?";
+    }
+
+    /**
+     * Users modified after a timestamp bound as the only parameter, whether active or not.
+     * @param modifiedColumn already validated column name
+     */
+    static String syncChangedUsers(String modifiedColumn) {
+        return "select " + USER_COLUMNS + ", is_active from atenxia_user where " + modifiedColumn + " > ?";
+    }
+}
@@ -0,0 +1,329 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.keycloak.models.UserModel;
+
+/**
+ * Translates Keycloak user search parameters into one parameterised condition on
+ * {@code atenxia_user}, shared by searches and counts.
+ * <p>
+ * Search terms follow Keycloak's rules: a term in double quotes matches exactly, {@code *} is
+ * a wildcard and any other term is a prefix. Prefix conditions are written as
+ * {@code column like 'term%'} so Postgres can answer them from a {@code text_pattern_ops}
+ * (or, in case-insensitive mode, a {@code lower(column) text_pattern_ops}) index. Field
+ * filters without {@code EXACT} match anywhere in the value, like Keycloak's own user store,
+ * which needs a trigram index to avoid a scan. See {@code db/atenxia_user_indexes.sql}.
+ * <p>
+ * Each condition is also kept as a predicate, so the {@link UserDirectory} can evaluate the
+ * query in memory with the same results.
+ */
+class UserSearchQuery {
+
+    private static final String MATCH_NOTHING = "1=0";
+
+    /**
+     * Fields of a user a query is evaluated against in memory.
+     */
+    interface Row {
+        String getUsername();
+
+        String getEmail();
+
+        /**
+         * Role flags, as packed in {@link CustomUser}.
+         */
+        int getFlags();
+    }
+
+    private final boolean caseInsensitive;
+    private final List<String> conditions = new ArrayList<>();
+    private final List<Object> params = new ArrayList<>();
+    private final List<Predicate<Row>> predicates = new ArrayList<>();
+    private String searchPrefix;
+
+    private UserSearchQuery(boolean caseInsensitive) {
+        this.caseInsensitive = caseInsensitive;
+    }
+
+    /**
+     * Query for the free text search box of the admin console.
+     */
+    static UserSearchQuery fromSearch(String search, boolean caseInsensitive) {
+        UserSearchQuery query = new UserSearchQuery(caseInsensitive);
+        query.addSearch(search);
+        return query;
+    }
+
+    /**
+     * Query for the parameters of {@code searchForUserStream(RealmModel, Map, Integer, Integer)}.
+     * Parameters that do not apply to atenxia_user are ignored.
+     */
+    static UserSearchQuery fromParams(Map<String, String> attributes, boolean caseInsensitive) {
+        UserSearchQuery query = new UserSearchQuery(caseInsensitive);
+        boolean exact = Boolean.parseBoolean(attributes.get(UserModel.EXACT));
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            String value = entry.getValue();
+            if (value == null || value.isBlank()) {
+                continue;
+            }
+            switch (entry.getKey()) {
+                case UserModel.SEARCH -> query.addSearch(value);
+                case UserModel.USERNAME -> query.addField("username", Row::getUsername, value, exact);
+                case UserModel.EMAIL -> query.addField("email", Row::getEmail, value, exact);
+                // atenxia_user has no names and every active user is enabled
+                case UserModel.FIRST_NAME, UserModel.LAST_NAME -> query.conditions.add(MATCH_NOTHING);
+                case UserModel.ENABLED -> {
+                    if (!Boolean.parseBoolean(value)) {
+                        query.conditions.add(MATCH_NOTHING);
+                    }
+                }
+                default -> {
+                    if (AtenxiaUserAttributes.isAttribute(entry.getKey())) {
+                        query.addAttribute(entry.getKey(), value);
+                    }
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Query for {@code searchForUserByUserAttributeStream}.
+     * Attributes other than those in {@link AtenxiaUserAttributes} match no user.
+     */
+    static UserSearchQuery fromAttribute(String name, String value, boolean caseInsensitive) {
+        UserSearchQuery query = new UserSearchQuery(caseInsensitive);
+        if (name != null && value != null && AtenxiaUserAttributes.isAttribute(name)) {
+            query.addAttribute(name, value);
+        }
+        else {
+            query.conditions.add(MATCH_NOTHING);
+        }
+        return query;
+    }
+
+    private void addAttribute(String name, String value) {
+        if (AtenxiaUserAttributes.EMAIL_DOMAIN.equals(name)) {
+            String domain = value.toLowerCase(Locale.ROOT);
+            conditions.add("split_part(lower(email), '@', 2) = ?");
+            params.add(domain);
+            predicates.add(row -> domain.equals(AtenxiaUserAttributes.emailDomain(row.getEmail())));
+        }
+        // Flags are inlined rather than bound so the planner can match partial indexes
+        else if (value.equalsIgnoreCase("true")) {
+            int flag = AtenxiaUserAttributes.getFlag(name);
+            conditions.add(name);
+            predicates.add(row -> (row.getFlags() & flag) != 0);
+        }
+        else if (value.equalsIgnoreCase("false")) {
+            int flag = AtenxiaUserAttributes.getFlag(name);
+            conditions.add("not " + name);
+            predicates.add(row -> (row.getFlags() & flag) == 0);
+        }
+        else {
+            conditions.add(MATCH_NOTHING);
+        }
+    }
+
+    /**
+     * Leaves the given users out of the results.
+     * @return this query
+     */
+    UserSearchQuery excluding(Collection<String> usernames) {
+        if (!usernames.isEmpty()) {
+            Set<String> excluded = Set.copyOf(usernames);
+            conditions.add("not username = any(?)");
+            params.add(excluded.toArray(new String[0]));
+            predicates.add(row -> !excluded.contains(row.getUsername()));
+        }
+        return this;
+    }
+
+    private void addSearch(String search) {
+        if (search == null) {
+            return;
+        }
+        for (String term : search.trim().split("\\s+")) {
+            if (term.isEmpty() || term.equals("*")) {
+                continue;
+            }
+            if (term.length() > 1 && term.startsWith("\"") && term.endsWith("\"")) {
+                String value = normalize(term.substring(1, term.length() - 1));
+                conditions.add("(" + equal("username") + " or " + equal("email") + ")");
+                params.add(value);
+                params.add(value);
+                predicates.add(row -> value.equals(normalize(row.getUsername())) || value.equals(normalize(row.getEmail())));
+                addSearchPrefix(value);
+            }
+            else {
+                String pattern = toLikePattern(term);
+                String glob = normalize(term);
+                if (!term.endsWith("*")) {
+                    pattern += "%";
+                    glob += "*";
+                }
+                conditions.add("(" + like("username") + " or " + like("email") + ")");
+                params.add(pattern);
+                params.add(pattern);
+                String[] parts = glob.split("\\*", -1);
+                predicates.add(row -> matches(normalize(row.getUsername()), parts) || matches(normalize(row.getEmail()), parts));
+                addSearchPrefix(parts[0]);
+            }
+        }
+    }
+
+    private void addField(String column, Function<Row, String> field, String value, boolean exact) {
+        String normalized = normalize(value);
+        if (exact) {
+            conditions.add(equal(column));
+            params.add(normalized);
+            predicates.add(row -> normalized.equals(normalize(field.apply(row))));
+        }
+        else if (value.contains("*")) {
+            conditions.add(like(column));
+            params.add(toLikePattern(value));
+            String[] parts = normalized.split("\\*", -1);
+            predicates.add(row -> matches(normalize(field.apply(row)), parts));
+        }
+        else {
+            conditions.add(like(column));
+            params.add("%" + toLikePattern(value) + "%");
+            predicates.add(row -> {
+                String fieldValue = normalize(field.apply(row));
+                return fieldValue != null && fieldValue.contains(normalized);
+            });
+        }
+    }
+
+    /**
+     * Keeps the longest literal start of the search terms: every matching user has it on its
+     * username or its email.
+     */
+    private void addSearchPrefix(String prefix) {
+        if (!prefix.isEmpty() && (searchPrefix == null || prefix.length() > searchPrefix.length())) {
+            searchPrefix = prefix;
+        }
+    }
+
+    /**
+     * In-memory LIKE: whether the value is made of the parts in order, with anything in between
+     * them, like a pattern split at its wildcards.
+     */
+    private static boolean matches(String value, String[] parts) {
+        if (value == null) {
+            return false;
+        }
+        if (parts.length == 1) {
+            return value.equals(parts[0]);
+        }
+        if (!value.startsWith(parts[0])) {
+            return false;
+        }
+        int from = parts[0].length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int at = value.indexOf(parts[i], from);
+            if (at < 0) {
+                return false;
+            }
+            from = at + parts[i].length();
+        }
+        String last = parts[parts.length - 1];
+        return value.length() - from >= last.length() && value.endsWith(last);
+    }
+
+    private String equal(String column) {
+        return caseInsensitive ? "lower(" + column + ") = ?" : column + " = ?";
+    }
+
+    private String like(String column) {
+        return caseInsensitive ? "lower(" + column + ") like ?" : column + " like ?";
+    }
+
+    private String normalize(String value) {
+        return caseInsensitive && value != null ? value.toLowerCase(Locale.ROOT) : value;
+    }
+
+    /**
+     * Escapes LIKE metacharacters in the term and turns Keycloak's {@code *} into {@code %}.
+     */
+    private String toLikePattern(String term) {
+        String escaped = normalize(term)
+          .replace("\\", "\\\\")
+          .replace("%", "\\%")
+          .replace("_", "\\_");
+        return escaped.replace('*', '%');
+    }
+
+    /**
+     * Condition to append after {@code where is_active=true and}, or null for all users.
+     */
+    String getPredicate() {
+        return conditions.isEmpty() ? null : String.join(" and ", conditions);
+    }
+
+    /**
+     * Whether a condition can never be met, so the database need not be asked.
+     */
+    boolean matchesNothing() {
+        return conditions.contains(MATCH_NOTHING);
+    }
+
+    List<Object> getParams() {
+        return Collections.unmodifiableList(params);
+    }
+
+    /**
+     * Whether the user meets every condition, evaluated in memory.
+     */
+    boolean matches(Row row) {
+        for (Predicate<Row> predicate : predicates) {
+            if (!predicate.test(row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a user loaded from the database meets every condition, evaluated in memory.
+     */
+    boolean matches(CustomUser user) {
+        return matches(new Row() {
+            @Override
+            public String getUsername() {
+                return user.getUsername();
+            }
+
+            @Override
+            public String getEmail() {
+                return user.getEmail();
+            }
+
+            @Override
+            public int getFlags() {
+                return user.getFlags();
+            }
+        });
+    }
+
+    /**
+     * Literal start that the username or the email of every matching user has, normalized
+     * like the query, or null if the search terms have none.
+     */
+    String getSearchPrefix() {
+        return searchPrefix;
+    }
+
+    boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+}
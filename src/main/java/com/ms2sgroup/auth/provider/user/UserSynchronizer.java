@@ -0,0 +1,282 @@
+package com.ms2sgroup.auth.provider.user;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+
+/**
+ * Imports {@code atenxia_user} into Keycloak's local user storage for components running in
+ * import mode. Rows are streamed through a server-side cursor and written in batches, each in
+ * its own transaction, so memory use does not grow with the number of users.
+ */
+class UserSynchronizer {
+    private static final Logger log = LoggerFactory.getLogger(UserSynchronizer.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final String DEFAULT_MODIFIED_COLUMN = "updated_at";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final UserStorageProviderModel model;
+    private final DataSource dataSource;
+    private final int batchSize;
+    private final int fetchSize;
+    private final String modifiedColumn;
+
+    UserSynchronizer(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, DataSource dataSource) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.dataSource = dataSource;
+        this.batchSize = Math.max(1, model.get(CONFIG_KEY_SYNC_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        this.fetchSize = model.get(CONFIG_KEY_FETCH_SIZE, ComponentState.DEFAULT_FETCH_SIZE);
+        this.modifiedColumn = model.get(CONFIG_KEY_SYNC_MODIFIED_COLUMN, DEFAULT_MODIFIED_COLUMN);
+    }
+
+    /**
+     * Imports every active user and removes imported users that are no longer active.
+     */
+    SynchronizationResult syncAll() {
+        SynchronizationResult result = importUsers(UserQueries.SYNC_ALL_USERS, List.of());
+        removeMissingUsers(result);
+        log.info("[I74] Full sync of component {} finished: {}", model.getId(), result.getStatus());
+        return result;
+    }
+
+    /**
+     * Imports users modified after the given date, removing those that were deactivated.
+     * Relies on an indexed modification timestamp column.
+     */
+    SynchronizationResult syncSince(Date since) {
+        if (!DbUtil.IDENTIFIER.matcher(modifiedColumn).matches()) {
+            throw new IllegalStateException("Invalid modification column: " + modifiedColumn);
+        }
+        SynchronizationResult result = importUsers(UserQueries.syncChangedUsers(modifiedColumn), List.of(new Timestamp(since.getTime())));
+        log.info("[I89] Changed users sync of component {} since {} finished: {}", model.getId(), since, result.getStatus());
+        return result;
+    }
+
+    private SynchronizationResult importUsers(String sql, List<?> params) {
+        SynchronizationResult result = new SynchronizationResult();
+        List<SyncedUser> batch = new ArrayList<>(batchSize);
+        try (QueryCursor<SyncedUser> cursor = QueryCursor.open(dataSource, sql, params, fetchSize, SyncedUser::read)) {
+            cursor.stream().forEach(user -> {
+                batch.add(user);
+                if (batch.size() >= batchSize) {
+                    importBatch(batch, result);
+                    batch.clear();
+                }
+            });
+        }
+        catch(SQLException ex) {
+            throw new RuntimeException("Database error:" + ex.getMessage(), ex);
+        }
+        if (!batch.isEmpty()) {
+            importBatch(batch, result);
+        }
+        return result;
+    }
+
+    private void importBatch(List<SyncedUser> batch, SynchronizationResult result) {
+        try {
+            SynchronizationResult batchResult = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                SynchronizationResult r = new SynchronizationResult();
+                RealmModel realm = session.realms().getRealm(realmId);
+                AtenxiaClientRoles roles = new AtenxiaClientRoles(realm);
+                UserProvider local = UserStoragePrivateUtil.userLocalStorage(session);
+                for (SyncedUser user : batch) {
+                    importUser(realm, local, roles, user, r);
+                }
+                return r;
+            });
+            result.add(batchResult);
+        }
+        catch(RuntimeException ex) {
+            // The whole batch was rolled back
+            log.warn("[W130] Unable to import batch of {} users: ex={}", batch.size(), ex.getMessage());
+            for (int i = 0; i < batch.size(); i++) {
+                result.increaseFailed();
+            }
+        }
+    }
+
+    private void importUser(RealmModel realm, UserProvider local, AtenxiaClientRoles roles, SyncedUser synced, SynchronizationResult result) {
+        CustomUser user = synced.user;
+        UserModel existing = local.getUserByUsername(realm, user.getUsername());
+        if (existing != null && !model.getId().equals(existing.getFederationLink())) {
+            log.warn("[W143] User {} already exists and is not linked to this provider, skipping", user.getUsername());
+            result.increaseFailed();
+            return;
+        }
+        if (!synced.active) {
+            if (existing != null) {
+                local.removeUser(realm, existing);
+                result.increaseRemoved();
+            }
+            return;
+        }
+
+        UserModel imported = existing;
+        if (imported == null) {
+            imported = local.addUser(realm, user.getUsername());
+            imported.setFederationLink(model.getId());
+        }
+        // Only what differs is written, so unchanged users cost no update
+        boolean changed = false;
+        if (!imported.isEnabled()) {
+            imported.setEnabled(true);
+            changed = true;
+        }
+        // Local storage keeps emails in lower case
+        if (!Objects.equals(imported.getEmail(), KeycloakModelUtils.toLowerCaseSafe(user.getEmail()))) {
+            imported.setEmail(user.getEmail());
+            changed = true;
+        }
+        if (!imported.isEmailVerified()) {
+            imported.setEmailVerified(true);
+            changed = true;
+        }
+        for (String name : AtenxiaUserAttributes.NAMES) {
+            String value = AtenxiaUserAttributes.getValue(user, name);
+            if (Objects.equals(imported.getFirstAttribute(name), value)) {
+                continue;
+            }
+            if (value != null) {
+                imported.setSingleAttribute(name, value);
+            }
+            else {
+                imported.removeAttribute(name);
+            }
+            changed = true;
+        }
+        changed |= roles.apply(imported, user);
+        if (existing == null) {
+            result.increaseAdded();
+        }
+        else if (changed) {
+            result.increaseUpdated();
+        }
+    }
+
+    /**
+     * Removes imported users that are no longer active in atenxia_user. Imported users are
+     * read page by page and checked against the database one page at a time.
+     */
+    private void removeMissingUsers(SynchronizationResult result) {
+        List<String> missing = new ArrayList<>();
+        int first = 0;
+        int[] pageSize = { 0 };
+        do {
+            int offset = first;
+            List<String> page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                List<UserModel> users = UserStoragePrivateUtil.userLocalStorage(session)
+                  .searchForUserStream(realm, Map.of(), offset, batchSize)
+                  .collect(Collectors.toList());
+                pageSize[0] = users.size();
+                return users.stream()
+                  .filter(u -> model.getId().equals(u.getFederationLink()))
+                  .map(UserModel::getUsername)
+                  .collect(Collectors.toList());
+            });
+            Set<String> active = findActiveUsernames(page);
+            page.stream().filter(username -> !active.contains(username)).forEach(missing::add);
+            first += batchSize;
+        }
+        // Pages hold users of every provider, so only a short page means the end
+        while (pageSize[0] == batchSize);
+
+        for (int i = 0; i < missing.size(); i += batchSize) {
+            List<String> batch = missing.subList(i, Math.min(missing.size(), i + batchSize));
+            try {
+                int removed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    UserProvider local = UserStoragePrivateUtil.userLocalStorage(session);
+                    int count = 0;
+                    for (String username : batch) {
+                        UserModel user = local.getUserByUsername(realm, username);
+                        if (user != null && local.removeUser(realm, user)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                });
+                for (int j = 0; j < removed; j++) {
+                    result.increaseRemoved();
+                }
+            }
+            catch(RuntimeException ex) {
+                log.warn("[W214] Unable to remove batch of {} users: ex={}", batch.size(), ex.getMessage());
+                for (int j = 0; j < batch.size(); j++) {
+                    result.increaseFailed();
+                }
+            }
+        }
+    }
+
+    private Set<String> findActiveUsernames(List<String> usernames) {
+        Set<String> active = new HashSet<>();
+        if (usernames.isEmpty()) {
+            return active;
+        }
+        try (Connection c = dataSource.getConnection();
+             PreparedStatement st = c.prepareStatement(UserQueries.ACTIVE_USERNAMES)) {
+            Array array = c.createArrayOf("varchar", usernames.toArray());
+            try {
+                st.setArray(1, array);
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        active.add(rs.getString(1));
+                    }
+                }
+            }
+            finally {
+                array.free();
+            }
+        }
+        catch(SQLException ex) {
+            throw new RuntimeException("Database error:" + ex.getMessage(), ex);
+        }
+        return active;
+    }
+
+    private static class SyncedUser {
+        private final CustomUser user;
+        private final boolean active;
+
+        private SyncedUser(CustomUser user, boolean active) {
+            this.user = user;
+            this.active = active;
+        }
+
+        private static SyncedUser read(ResultSet rs) throws SQLException {
+            return new SyncedUser(CustomUserStorageProvider.mapRow(rs), rs.getBoolean("is_active"));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.ms2sgroup.auth.provider.user.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small thread-safe LRU map whose entries expire a fixed time after being written.
+ * Expired entries can optionally be kept for a further grace period, during which only
+ * {@link #getStale} returns them.
+ */
+public class ExpiringLruCache<K, V> {
+
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param ttlMillis
+     * @param maxEntries
+     */
+    public ExpiringLruCache(long ttlMillis, int maxEntries) {
+        this(ttlMillis, 0, maxEntries);
+    }
+
+    /**
+     * @param ttlMillis
+     * @param staleMillis time an expired entry is still kept for {@link #getStale}
+     * @param maxEntries
+     */
+    public ExpiringLruCache(long ttlMillis, long staleMillis, int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the live value for the key, or null if it is absent or expired.
+     */
+    public V get(K key) {
+        Entry<V> entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired(0)) {
+                if (entry.isExpired(staleNanos)) {
+                    entries.remove(key);
+                }
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Returns the value for the key even if it expired, as long as it is within the grace
+     * period given at construction. Not counted as a hit or a miss.
+     */
+    public synchronized V getStale(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && !entry.isExpired(staleNanos) ? entry.value : null;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long graceNanos) {
+            return System.nanoTime() - expiresAt - graceNanos > 0;
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package com.ms2sgroup.auth.provider.user.util;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Base64;
-import java.util.Objects;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 public class PBKDF2SHA256HashingUtil {
 
-    private char[] password;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] FIRST_BLOCK_INDEX = { 0, 0, 0, 1 };
+    // HMAC instances are not thread safe, so each verifying thread keeps its own
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    });
+
+    private byte[] password;
     private byte[] salt;
     private int iterations;
     private static final int keyLength = 256;
@@ -19,23 +31,56 @@ public class PBKDF2SHA256HashingUtil {
      * @param iterations
      */
     public PBKDF2SHA256HashingUtil(String password, String salt, int iterations){
-        this.password = password.toCharArray();
-        this.salt = salt.getBytes();
+        this.password = password.getBytes(StandardCharsets.UTF_8);
+        this.salt = salt.getBytes(StandardCharsets.UTF_8);
         this.iterations = iterations;
     }
 
     public boolean validatePassword(String passwordHash){
-        return Objects.equals(passwordHash, hashPassword());
+        try {
+            return validatePassword(Base64.getDecoder().decode(passwordHash));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compares the derived key with the expected one in constant time.
+     * @param expectedKey decoded hash stored for the user
+     */
+    public boolean validatePassword(byte[] expectedKey){
+        byte[] derived = hashPassword();
+        return derived != null && MessageDigest.isEqual(expectedKey, derived);
     }
 
-    private String hashPassword(){
+    /**
+     * PBKDF2-HMAC-SHA256 for a single output block, which is all a 256 bit key needs.
+     * Equivalent to {@code PBKDF2WithHmacSHA256} but reuses the thread's {@link Mac}
+     * and the same two buffers for every iteration.
+     */
+    private byte[] hashPassword(){
+        if (password.length == 0 || iterations <= 0) {
+            return null;
+        }
         try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            PBEKeySpec spec = new PBEKeySpec(this.password, this.salt, this.iterations, keyLength);
-            SecretKey key = skf.generateSecret(spec);
-            return Base64.getEncoder().encodeToString(key.getEncoded());
-        } catch (Exception e) {
-            return "";
+            Mac mac = MAC.get();
+            mac.init(new SecretKeySpec(password, HMAC_ALGORITHM));
+            byte[] u = new byte[keyLength / 8];
+            byte[] result = new byte[keyLength / 8];
+            mac.update(salt);
+            mac.update(FIRST_BLOCK_INDEX);
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, result, 0, u.length);
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < result.length; j++) {
+                    result[j] ^= u[j];
+                }
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            return null;
         }
     }
 }
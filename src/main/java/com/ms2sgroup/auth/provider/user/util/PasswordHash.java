@@ -0,0 +1,95 @@
+package com.ms2sgroup.auth.provider.user.util;
+
+import java.util.Base64;
+
+/**
+ * Stored password in the {@code <algorithm>$<iterations>$<salt>$<hash>} format written by
+ * the Atenxia application, for example {@code pbkdf2_sha256$260000$salt$base64hash}.
+ */
+public class PasswordHash {
+
+    public static final String PBKDF2_SHA256 = "pbkdf2_sha256";
+
+    private final String encoded;
+    private final String algorithm;
+    private final int iterations;
+    private final String salt;
+    private final String hash;
+    private byte[] hashBytes;
+
+    private PasswordHash(String encoded, String algorithm, int iterations, String salt, String hash) {
+        this.encoded = encoded;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /**
+     * Splits the stored value into its components.
+     * @param encoded stored password column, may be null
+     * @return the parsed hash, or null if the value is not in the expected format
+     */
+    public static PasswordHash parse(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        int first = encoded.indexOf('$');
+        int second = first < 0 ? -1 : encoded.indexOf('$', first + 1);
+        int third = second < 0 ? -1 : encoded.indexOf('$', second + 1);
+        if (third < 0 || encoded.indexOf('$', third + 1) >= 0) {
+            return null;
+        }
+        int iterations;
+        try {
+            iterations = Integer.parseInt(encoded, first + 1, second, 10);
+        }
+        catch(NumberFormatException ex) {
+            return null;
+        }
+        if (iterations <= 0) {
+            return null;
+        }
+        return new PasswordHash(encoded, encoded.substring(0, first), iterations,
+          encoded.substring(second + 1, third), encoded.substring(third + 1));
+    }
+
+    /**
+     * The stored value this hash was parsed from.
+     */
+    public String getEncoded() {
+        return encoded;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public String getSalt() {
+        return salt;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Decoded hash, computed on first use.
+     * @return the hash bytes, or null if the hash is not valid Base64
+     */
+    public byte[] getHashBytes() {
+        if (hashBytes == null) {
+            try {
+                hashBytes = Base64.getDecoder().decode(hash);
+            }
+            catch(IllegalArgumentException ex) {
+                return null;
+            }
+        }
+        return hashBytes;
+    }
+}
@@ -0,0 +1,62 @@
+-- Indexes on atenxia_user used by the Keycloak user storage provider.
+-- Only active users are ever read, so every index is partial on is_active.
+
+-- Listings and searches in username order, paged with username > ?. The
+-- pattern indexes below compare bytes, not the collation's order, so unless
+-- the database collation is C they cannot serve these and every page sorts.
+create index if not exists atenxia_user_username_idx
+    on atenxia_user (username) where is_active;
+
+-- Lookups by username and email, and prefix searches (username like 'abc%'),
+-- which a btree using a collation other than C cannot serve.
+create index if not exists atenxia_user_username_pattern_idx
+    on atenxia_user (username text_pattern_ops) where is_active;
+create index if not exists atenxia_user_email_pattern_idx
+    on atenxia_user (email text_pattern_ops) where is_active;
+
+-- Only when the component has "Case Insensitive Search" enabled.
+create index if not exists atenxia_user_lower_username_pattern_idx
+    on atenxia_user (lower(username) text_pattern_ops) where is_active;
+create index if not exists atenxia_user_lower_email_pattern_idx
+    on atenxia_user (lower(email) text_pattern_ops) where is_active;
+
+-- Field searches without an exact match (username like '%abc%').
+-- create extension if not exists pg_trgm;
+-- create index if not exists atenxia_user_username_trgm_idx
+--     on atenxia_user using gin (username gin_trgm_ops) where is_active;
+-- create index if not exists atenxia_user_email_trgm_idx
+--     on atenxia_user using gin (email gin_trgm_ops) where is_active;
+
+-- Attribute searches on the role flags, streamed in username order.
+create index if not exists atenxia_user_teacher_idx
+    on atenxia_user (username) where is_active and is_teacher;
+create index if not exists atenxia_user_parent_idx
+    on atenxia_user (username) where is_active and is_parent;
+create index if not exists atenxia_user_professional_idx
+    on atenxia_user (username) where is_active and is_professional;
+create index if not exists atenxia_user_center_admin_idx
+    on atenxia_user (username) where is_active and is_center_admin;
+create index if not exists atenxia_user_staff_idx
+    on atenxia_user (username) where is_active and is_staff;
+
+-- Attribute search on email_domain.
+create index if not exists atenxia_user_email_domain_idx
+    on atenxia_user (split_part(lower(email), '@', 2)) where is_active;
+
+-- Changed users synchronization in import mode, and the periodic refreshes of
+-- the lookup filter and the in-memory directory, read the column named in the
+-- component's "Modification Timestamp Column". The stock atenxia_user has no
+-- such column: uncomment these statements to add it, keep it set on every
+-- change and index it, or index an existing column instead.
+-- alter table atenxia_user add column if not exists updated_at timestamptz not null default now();
+-- create or replace function atenxia_user_touch() returns trigger as $$
+-- begin
+--     new.updated_at = now();
+--     return new;
+-- end;
+-- $$ language plpgsql;
+-- create trigger atenxia_user_touch_trg
+--     before update on atenxia_user
+--     for each row execute function atenxia_user_touch();
+-- create index if not exists atenxia_user_updated_at_idx
+--     on atenxia_user (updated_at);
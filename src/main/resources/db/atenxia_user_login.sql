@@ -0,0 +1,18 @@
+-- Login outcomes written by the Keycloak user storage provider.
+-- Components with "Login Recording" enabled queue every password check and write the
+-- latest outcome per user in batches. The table name below must match the component
+-- setting.
+
+-- Kept apart from atenxia_user so the writes neither fire the change notification
+-- trigger nor move the modification timestamp that caches are refreshed from.
+-- failed_attempts counts the failed password checks since the last successful one.
+create table if not exists atenxia_user_login (
+    username varchar(150) primary key,
+    last_login timestamp with time zone,
+    failed_attempts integer not null default 0,
+    last_failed_login timestamp with time zone
+);
+
+-- Picks the users with the latest logins for the cache warm-up of components without a
+-- "Cache Warm-up Order".
+create index if not exists atenxia_user_login_last_login_idx on atenxia_user_login (last_login);
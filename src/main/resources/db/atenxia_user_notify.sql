@@ -0,0 +1,28 @@
+-- Change notifications on atenxia_user for the Keycloak user storage provider.
+-- Components with a "Change Notification Channel" LISTEN on that channel and drop
+-- the changed user from their caches on every node as soon as the change commits.
+-- The channel name below must match the component setting.
+
+-- The payload is the username, followed by a tab and the email when there is one.
+-- An update that renames a user notifies both the old and the new username.
+create or replace function atenxia_user_notify() returns trigger as $$
+begin
+    if tg_op in ('UPDATE', 'DELETE') then
+        perform pg_notify('atenxia_user_changed',
+            old.username || coalesce(E'\t' || old.email, ''));
+    end if;
+    if tg_op in ('INSERT', 'UPDATE') then
+        if tg_op = 'INSERT' or new.username is distinct from old.username
+                or new.email is distinct from old.email then
+            perform pg_notify('atenxia_user_changed',
+                new.username || coalesce(E'\t' || new.email, ''));
+        end if;
+    end if;
+    return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists atenxia_user_notify_trg on atenxia_user;
+create trigger atenxia_user_notify_trg
+    after insert or update or delete on atenxia_user
+    for each row execute function atenxia_user_notify();
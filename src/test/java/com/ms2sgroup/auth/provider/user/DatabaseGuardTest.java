@@ -0,0 +1,131 @@
+package com.ms2sgroup.auth.provider.user;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+class DatabaseGuardTest {
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        DatabaseGuard guard = guard(3, 60, 0);
+
+        fail(guard);
+        fail(guard);
+        succeed(guard);
+        fail(guard);
+        fail(guard);
+        assertEquals("CLOSED", guard.getCircuitState());
+
+        fail(guard);
+        assertEquals("OPEN", guard.getCircuitState());
+        assertEquals(1, guard.getTrips());
+        assertThrows(DatabaseUnavailableException.class, guard::acquire);
+        assertEquals(1, guard.getShortCircuited());
+        assertEquals(0, guard.getInFlight());
+    }
+
+    @Test
+    void successfulTrialClosesTheCircuit() {
+        DatabaseGuard guard = guard(1, 0, 0);
+        fail(guard);
+        assertEquals("OPEN", guard.getCircuitState());
+
+        guard.acquire();
+        assertEquals("HALF_OPEN", guard.getCircuitState());
+        // Only the trial goes through until it completes
+        assertThrows(DatabaseUnavailableException.class, guard::acquire);
+        guard.release(false);
+
+        assertEquals("CLOSED", guard.getCircuitState());
+    }
+
+    @Test
+    void failedTrialReopensTheCircuit() {
+        DatabaseGuard guard = guard(1, 0, 0);
+        fail(guard);
+
+        fail(guard);
+
+        assertEquals("OPEN", guard.getCircuitState());
+        assertEquals(2, guard.getTrips());
+    }
+
+    @Test
+    void closesThroughJmx() {
+        DatabaseGuard guard = guard(1, 60, 0);
+        fail(guard);
+
+        guard.closeCircuit();
+
+        assertEquals("CLOSED", guard.getCircuitState());
+        assertDoesNotThrow(guard::acquire);
+    }
+
+    @Test
+    void rejectsRequestsBeyondTheLimit() {
+        DatabaseGuard guard = guard(0, 60, 1);
+        guard.acquire();
+
+        assertThrows(DatabaseUnavailableException.class, guard::acquire);
+        assertEquals(1, guard.getRejected());
+        assertEquals("CLOSED", guard.getCircuitState());
+
+        guard.release(false);
+        assertDoesNotThrow(guard::acquire);
+    }
+
+    @Test
+    void timeoutsAndLostConnectionsMeanUnavailable() {
+        assertEquals(DatabaseUnavailableException.class, DatabaseUnavailableException.of(new SQLTimeoutException("timeout")).getClass());
+        assertEquals(DatabaseUnavailableException.class, DatabaseUnavailableException.of(new SQLException("canceled", "57014")).getClass());
+        assertEquals(DatabaseUnavailableException.class, DatabaseUnavailableException.of(new SQLException("gone", "08006")).getClass());
+        assertEquals(RuntimeException.class, DatabaseUnavailableException.of(new SQLException("syntax", "42601")).getClass());
+        assertEquals(RuntimeException.class, DatabaseUnavailableException.of(new SQLException("unknown")).getClass());
+    }
+
+    @Test
+    void onlyUnavailabilityCountsAsAFailure() {
+        DatabaseGuard guard = guard(1, 60, 0);
+
+        guard.acquire();
+        guard.release(DatabaseUnavailableException.of(new SQLException("permission denied", "42501")));
+        guard.acquire();
+        guard.release(new IllegalStateException("mapping"));
+        assertEquals("CLOSED", guard.getCircuitState());
+
+        guard.acquire();
+        guard.release(DatabaseUnavailableException.of(new SQLTimeoutException("timeout")));
+        assertEquals("OPEN", guard.getCircuitState());
+    }
+
+    private static void fail(DatabaseGuard guard) {
+        guard.acquire();
+        guard.release(true);
+    }
+
+    private static void succeed(DatabaseGuard guard) {
+        guard.acquire();
+        guard.release(false);
+    }
+
+    private static DatabaseGuard guard(int failures, int openSeconds, int maxConcurrentQueries) {
+        ComponentModel model = new ComponentModel();
+        model.setId("test-component");
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CONFIG_KEY_CIRCUIT_BREAKER_FAILURES, String.valueOf(failures));
+        config.putSingle(CONFIG_KEY_CIRCUIT_BREAKER_OPEN_TIME, String.valueOf(openSeconds));
+        config.putSingle(CONFIG_KEY_MAX_CONCURRENT_QUERIES, String.valueOf(maxConcurrentQueries));
+        config.putSingle(CONFIG_KEY_QUERY_QUEUE_TIMEOUT, "0");
+        model.setConfig(config);
+        return new DatabaseGuard(model);
+    }
+}
@@ -0,0 +1,158 @@
+package com.ms2sgroup.auth.provider.user;
+
+import static com.ms2sgroup.auth.provider.user.CustomUserStorageProviderConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+class UserDirectoryTest {
+
+    private Connection connection;
+    private UserDirectory directory;
+
+    @BeforeEach
+    void load() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:directory" + System.nanoTime() + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        connection = dataSource.getConnection();
+        execute("create table atenxia_user (username varchar(150) primary key, email varchar(254), is_active boolean,"
+          + " is_center_admin boolean, is_parent boolean, is_professional boolean, is_teacher boolean, is_staff boolean,"
+          + " updated_at timestamp default current_timestamp)");
+        insert("alice", "zed@example.org", true);
+        insert("Alicia", "lopez@example.org", true);
+        insert("bob", "ali.b@example.org", true);
+        insert("carol", null, true);
+        insert("dave", "dave@example.org", false);
+
+        ComponentModel model = new ComponentModel();
+        model.setId("test-component");
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CONFIG_KEY_DIRECTORY, "true");
+        // Changes are only applied when reloaded by name
+        config.putSingle(CONFIG_KEY_DIRECTORY_REFRESH, "3600");
+        model.setConfig(config);
+        directory = new UserDirectory(model, dataSource);
+        await(directory::isReady);
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        directory.close();
+        connection.close();
+    }
+
+    @Test
+    void holdsActiveUsersOnly() {
+        assertEquals(4, directory.size());
+        assertEquals("alice", directory.getByUsername("alice").getUsername());
+        assertEquals("bob", directory.getByEmail("ali.b@example.org").getUsername());
+        assertNull(directory.getByUsername("ALICE"));
+        assertNull(directory.getByUsername("dave"));
+        assertNull(directory.getByEmail("dave@example.org"));
+        assertNull(directory.getByUsername("carol").getEmail());
+    }
+
+    @Test
+    void reloadAddsAndUpdatesUsers() throws Exception {
+        insert("erin", "erin@example.org", true);
+        execute("update atenxia_user set email = 'bob@example.org', is_teacher = true where username = 'bob'");
+
+        directory.reload("erin");
+        directory.reload("bob");
+        await(() -> directory.getByUsername("erin") != null && directory.getByEmail("bob@example.org") != null);
+
+        assertEquals(5, directory.size());
+        assertEquals("erin", directory.getByEmail("erin@example.org").getUsername());
+        assertNull(directory.getByEmail("ali.b@example.org"));
+        assertTrue(directory.getByUsername("bob").isTeacher());
+        assertEquals(List.of("alice", "Alicia", "bob", "carol", "erin"), search("", true));
+    }
+
+    @Test
+    void reloadDropsDeactivatedUsers() throws Exception {
+        execute("update atenxia_user set is_active = false where username = 'alice'");
+
+        directory.reload("alice");
+        await(() -> directory.getByUsername("alice") == null);
+
+        assertEquals(3, directory.size());
+        assertNull(directory.getByEmail("zed@example.org"));
+        assertEquals("Alicia", directory.getByEmail("lopez@example.org").getUsername());
+    }
+
+    @Test
+    void reloadAppliesRenames() throws Exception {
+        execute("update atenxia_user set username = 'robert' where username = 'bob'");
+
+        // Change notifications name both the old and the new username
+        directory.reload("bob");
+        directory.reload("robert");
+        await(() -> directory.getByUsername("robert") != null && directory.getByUsername("bob") == null);
+
+        assertEquals(4, directory.size());
+        assertEquals("robert", directory.getByEmail("ali.b@example.org").getUsername());
+        assertEquals(List.of("alice", "Alicia", "carol", "robert"), search("", true));
+    }
+
+    @Test
+    void prefixSearchFindsUsernameAndEmailMatchesInUsernameOrder() {
+        assertEquals(List.of("alice", "bob"), search("ali", false));
+        assertEquals(List.of("alice", "Alicia", "bob"), search("ali", true));
+        assertEquals(List.of("Alicia"), search("Ali", false));
+        assertEquals(3, directory.count(UserSearchQuery.fromSearch("ALI", true)));
+    }
+
+    @Test
+    void searchPagesFollowUsernameOrder() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("ali", true);
+
+        assertEquals(List.of("Alicia", "bob"), directory.search(query, 1, 5).map(CustomUser::getUsername).collect(Collectors.toList()));
+        assertEquals(List.of("alice"), directory.search(query, 0, 1).map(CustomUser::getUsername).collect(Collectors.toList()));
+    }
+
+    @Test
+    void wildcardSearchChecksEveryUser() {
+        assertEquals(List.of("alice", "Alicia", "bob", "carol"), search("*a*", true));
+        assertEquals(List.of("Alicia"), search("a*ia", true));
+    }
+
+    private List<String> search(String search, boolean caseInsensitive) {
+        return directory.search(UserSearchQuery.fromSearch(search, caseInsensitive), 0, -1)
+          .map(CustomUser::getUsername)
+          .collect(Collectors.toList());
+    }
+
+    private void insert(String username, String email, boolean active) throws SQLException {
+        execute("insert into atenxia_user (username, email, is_active, is_center_admin, is_parent, is_professional, is_teacher, is_staff)"
+          + " values ('" + username + "', " + (email != null ? "'" + email + "'" : "null") + ", " + active + ", false, false, false, false, false)");
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the directory");
+            Thread.sleep(10);
+        }
+    }
+}
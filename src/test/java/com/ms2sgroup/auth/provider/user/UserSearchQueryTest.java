@@ -0,0 +1,128 @@
+package com.ms2sgroup.auth.provider.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+class UserSearchQueryTest {
+
+    @Test
+    void termIsAUsernameOrEmailPrefix() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("bob", false);
+
+        assertEquals("(username like ? or email like ?)", query.getPredicate());
+        assertEquals(List.of("bob%", "bob%"), query.getParams());
+        assertEquals("bob", query.getSearchPrefix());
+        assertTrue(query.matches(user("bobby", null)));
+        assertTrue(query.matches(user("robert", "bob@example.org")));
+        assertFalse(query.matches(user("rob", "rob@example.org")));
+    }
+
+    @Test
+    void likeMetacharactersAreEscaped() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("a_b%c\\d", false);
+
+        assertEquals(List.of("a\\_b\\%c\\\\d%", "a\\_b\\%c\\\\d%"), query.getParams());
+        assertTrue(query.matches(user("a_b%c\\d", null)));
+        assertFalse(query.matches(user("axbyc\\d", null)));
+    }
+
+    @Test
+    void starIsAWildcard() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("*bob*", false);
+
+        assertEquals(List.of("%bob%", "%bob%"), query.getParams());
+        assertNull(query.getSearchPrefix());
+        assertTrue(query.matches(user("xbobx", null)));
+        assertTrue(query.matches(user("bob", null)));
+        assertFalse(query.matches(user("bo", null)));
+    }
+
+    @Test
+    void innerStarMatchesAnythingInBetween() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("b*b", false);
+
+        assertEquals(List.of("b%b%", "b%b%"), query.getParams());
+        assertEquals("b", query.getSearchPrefix());
+        assertTrue(query.matches(user("bxbz", null)));
+        assertTrue(query.matches(user("bb", null)));
+        assertFalse(query.matches(user("b", null)));
+        assertFalse(query.matches(user("xbb", null)));
+    }
+
+    @Test
+    void quotedTermMatchesExactly() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("\"bob\"", false);
+
+        assertEquals("(username = ? or email = ?)", query.getPredicate());
+        assertEquals(List.of("bob", "bob"), query.getParams());
+        assertTrue(query.matches(user("bob", null)));
+        assertFalse(query.matches(user("bobby", null)));
+    }
+
+    @Test
+    void caseInsensitiveSearchComparesLowerCase() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("Bob", true);
+
+        assertEquals("(lower(username) like ? or lower(email) like ?)", query.getPredicate());
+        assertEquals(List.of("bob%", "bob%"), query.getParams());
+        assertTrue(query.matches(user("BOBBY", null)));
+        assertFalse(UserSearchQuery.fromSearch("Bob", false).matches(user("bobby", null)));
+    }
+
+    @Test
+    void termsAreAllRequired() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("  bob   example ", false);
+
+        assertEquals("(username like ? or email like ?) and (username like ? or email like ?)", query.getPredicate());
+        assertTrue(query.matches(user("example", "bob@example.org")));
+        assertFalse(query.matches(user("bob", "bob@example.org")));
+    }
+
+    @Test
+    void emptySearchMatchesEveryone() {
+        assertNull(UserSearchQuery.fromSearch("*", false).getPredicate());
+        assertNull(UserSearchQuery.fromSearch(null, false).getPredicate());
+        assertTrue(UserSearchQuery.fromSearch("", false).matches(user("anyone", null)));
+    }
+
+    @Test
+    void fieldFiltersMatchAnywhereUnlessExact() {
+        UserSearchQuery contains = UserSearchQuery.fromParams(Map.of(UserModel.USERNAME, "ob"), false);
+        UserSearchQuery exact = UserSearchQuery.fromParams(Map.of(UserModel.USERNAME, "ob", UserModel.EXACT, "true"), false);
+
+        assertEquals(List.of("%ob%"), contains.getParams());
+        assertTrue(contains.matches(user("bob", null)));
+        assertEquals(List.of("ob"), exact.getParams());
+        assertFalse(exact.matches(user("bob", null)));
+    }
+
+    @Test
+    void namesMatchNobody() {
+        assertTrue(UserSearchQuery.fromParams(Map.of(UserModel.FIRST_NAME, "Bob"), false).matchesNothing());
+        assertTrue(UserSearchQuery.fromParams(Map.of(UserModel.ENABLED, "false"), false).matchesNothing());
+        assertFalse(UserSearchQuery.fromParams(Map.of(UserModel.ENABLED, "true"), false).matchesNothing());
+    }
+
+    @Test
+    void excludedUsersAreLeftOut() {
+        UserSearchQuery query = UserSearchQuery.fromSearch("bob", false).excluding(List.of("bobby"));
+
+        assertEquals("(username like ? or email like ?) and not username = any(?)", query.getPredicate());
+        assertFalse(query.matches(user("bobby", null)));
+        assertTrue(query.matches(user("bob", null)));
+        assertEquals(UserSearchQuery.fromSearch("bob", false).getPredicate(),
+          UserSearchQuery.fromSearch("bob", false).excluding(List.of()).getPredicate());
+    }
+
+    private static CustomUser user(String username, String email) {
+        return new CustomUser(username, email, 0);
+    }
+}